@@ -0,0 +1,186 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * The SHA-1 hashes of uploaded MMS attachments, together with the Message-ID of the
+ * message which contains the attachment. Used to replace further copies of the same
+ * attachment with a reference to the first one.
+ * <p/>
+ * There is one index per folder and UIDVALIDITY. Entries whose message is no longer in the
+ * folder (according to its {@link MessageIdIndex}) are dropped when the index is loaded,
+ * so references always point to messages on the server.
+ * <p/>
+ * Attachments of converted messages are pending until the message has been uploaded,
+ * only committed entries are saved.
+ */
+public class AttachmentIndex {
+    private static final int VERSION = 2;
+    private static final String PREFIX = "attachments-";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File file;
+    private final long uidValidity;
+    private final Map<String, String> committed = new HashMap<String, String>();
+    private final Map<String, String> pending = new HashMap<String, String>();
+
+    private AttachmentIndex(Context context, String name, long uidValidity) {
+        this.file = new File(context.getFilesDir(), PREFIX + Long.toHexString(DuplicateIndex.hashValues(name)));
+        this.uidValidity = uidValidity;
+    }
+
+    /**
+     * @param context the context
+     * @param folder the folder the attachments get uploaded to
+     * @param onServer the Message-IDs in the folder
+     * @return the stored index, or an empty one if there is none
+     */
+    public static AttachmentIndex load(Context context, BackupImapStore.BackupFolder folder,
+                                       MessageIdIndex onServer) {
+        final AttachmentIndex index = new AttachmentIndex(context, folder.getStateKey(), folder.getUidValidity());
+        index.read();
+
+        int dropped = 0;
+        for (Iterator<String> it = index.committed.values().iterator(); it.hasNext(); ) {
+            if (!onServer.contains(it.next())) {
+                it.remove();
+                dropped++;
+            }
+        }
+        if (dropped > 0) Log.i(TAG, "dropped " + dropped + " attachment hashes of deleted messages");
+        return index;
+    }
+
+    /**
+     * Deletes the indexes of all folders.
+     */
+    public static void deleteAll(Context context) {
+        FolderIndex.deleteAll(context, PREFIX);
+    }
+
+    /**
+     * @return a digest to compute attachment hashes with
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the SHA-1 of the data as hex string
+     */
+    public static String hash(byte[] data) {
+        return toHex(createDigest().digest(data));
+    }
+
+    /**
+     * @param sha1 the hash of the attachment
+     * @param messageId the Message-ID of the message being converted
+     * @return the Message-ID of an earlier message with the same attachment, or null if
+     *         this is the first one (which then gets recorded as pending)
+     */
+    public synchronized String getFirstMessageId(String sha1, String messageId) {
+        String first = committed.get(sha1);
+        if (first == null) first = pending.get(sha1);
+
+        if (first == null) {
+            pending.put(sha1, messageId);
+            return null;
+        } else {
+            return first.equals(messageId) ? null : first;
+        }
+    }
+
+    /**
+     * Commits the attachments of messages which are now on the server.
+     *
+     * @param messageIds the Message-IDs of the messages
+     */
+    public synchronized void commit(Collection<String> messageIds) {
+        final Set<String> ids = new HashSet<String>(messageIds);
+        for (Iterator<Map.Entry<String, String>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, String> e = it.next();
+            if (ids.contains(e.getValue())) {
+                committed.put(e.getKey(), e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void save() {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(VERSION);
+            out.writeLong(uidValidity);
+            out.writeInt(committed.size());
+            for (Map.Entry<String, String> e : committed.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+            if (LOCAL_LOGV) Log.v(TAG, "saved " + committed.size() + " attachment hashes");
+        } catch (IOException e) {
+            Log.w(TAG, "error writing " + file, e);
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private void read() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) throw new IOException("unknown version");
+            // folder has been recreated, none of the messages exist anymore
+            if (in.readLong() != uidValidity) return;
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                committed.put(in.readUTF(), in.readUTF());
+            }
+        } catch (FileNotFoundException ignored) {
+        } catch (IOException e) {
+            Log.w(TAG, "error reading " + file, e);
+            committed.clear();
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2]     = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
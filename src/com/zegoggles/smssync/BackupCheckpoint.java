@@ -0,0 +1,71 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.util.Log;
+import com.zegoggles.smssync.CursorToMessage.DataType;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Coalesces updates of the max synced dates during a backup. Instead of writing them
+ * after every uploaded batch, dates are persisted every
+ * {@link #MAX_PENDING_ITEMS} items or {@link #MAX_PENDING_MILLIS} ms, and when
+ * {@link #flush()} is called at the end of the backup.
+ * <p/>
+ * Dates must only be passed in after the corresponding messages have been uploaded.
+ * If the process dies, the items since the last checkpoint get uploaded again on the
+ * next run, but nothing is skipped.
+ */
+public class BackupCheckpoint {
+    static final int MAX_PENDING_ITEMS = 100;
+    static final long MAX_PENDING_MILLIS = 10 * 1000;
+
+    private final Context context;
+    private final Map<DataType, Long> pending = new EnumMap<DataType, Long>(DataType.class);
+    private int pendingItems;
+    private long lastFlush = System.currentTimeMillis();
+
+    public BackupCheckpoint(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Records progress.
+     *
+     * @param type the type of the uploaded items
+     * @param maxDate the max date of the uploaded items
+     * @param items the number of uploaded items
+     */
+    public void update(DataType type, long maxDate, int items) {
+        final Long current = pending.get(type);
+        if (current == null || maxDate > current) {
+            pending.put(type, maxDate);
+        }
+        pendingItems += items;
+
+        if (pendingItems >= MAX_PENDING_ITEMS ||
+            System.currentTimeMillis() - lastFlush >= MAX_PENDING_MILLIS) {
+            flush();
+        }
+    }
+
+    /**
+     * Persists all pending dates.
+     */
+    public void flush() {
+        if (!pending.isEmpty()) {
+            if (LOCAL_LOGV) Log.v(TAG, "checkpoint: " + pending);
+
+            PrefStore.setMaxSyncedDates(context,
+                    pending.get(DataType.SMS),
+                    pending.get(DataType.MMS),
+                    pending.get(DataType.CALLLOG));
+            pending.clear();
+        }
+        pendingItems = 0;
+        lastFlush = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2010 Jan Berkel <jan.berkel@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zegoggles.smssync;
+
+import android.database.Cursor;
+import com.zegoggles.smssync.CursorToMessage.DataType;
+
+/**
+ * Merges the SMS, MMS and call log items (each sorted by date) so that items
+ * are returned in global date order. MMS dates are stored in seconds and get
+ * normalised to milliseconds for the comparison.
+ */
+public class BackupCursors {
+    private final Entry[] entries;
+    private Entry current;
+
+    public BackupCursors(KeysetPager smsItems, KeysetPager mmsItems, KeysetPager callLogItems) {
+        entries = new Entry[] {
+            new Entry(DataType.SMS, smsItems, 1),
+            new Entry(DataType.MMS, mmsItems, 1000),
+            new Entry(DataType.CALLLOG, callLogItems, 1)
+        };
+    }
+
+    /**
+     * Moves to the next item.
+     *
+     * @return the type of the next item, or null if all cursors are exhausted
+     */
+    public DataType next() {
+        if (current != null) current.advance();
+
+        current = null;
+        for (Entry e : entries) {
+            if (e.hasItem && (current == null || e.date < current.date)) {
+                current = e;
+            }
+        }
+        return current == null ? null : current.type;
+    }
+
+    /**
+     * @return the cursor positioned on the current item
+     */
+    public Cursor getCursor() {
+        if (current == null) throw new IllegalStateException("no current item");
+        return current.items.getCursor();
+    }
+
+    /**
+     * Closes all open cursors.
+     */
+    public void close() {
+        for (Entry e : entries) {
+            if (e.items != null) e.items.close();
+        }
+    }
+
+    private static class Entry {
+        final DataType type;
+        final KeysetPager items;
+        final long dateMultiplier;
+
+        boolean hasItem;
+        long date;
+
+        Entry(DataType type, KeysetPager items, long dateMultiplier) {
+            this.type = type;
+            this.items = items;
+            this.dateMultiplier = dateMultiplier;
+            advance();
+        }
+
+        void advance() {
+            hasItem = items != null && items.moveToNext();
+            if (hasItem) {
+                final Cursor cursor = items.getCursor();
+                date = cursor.getLong(cursor.getColumnIndex(SmsConsts.DATE)) * dateMultiplier;
+            } else {
+                date = Long.MAX_VALUE;
+            }
+        }
+    }
+}
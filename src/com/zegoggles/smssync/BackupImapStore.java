@@ -21,17 +21,29 @@ import com.fsck.k9.mail.Folder.FolderType;
 import com.fsck.k9.mail.Folder.OpenMode;
 import com.fsck.k9.mail.*;
 
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+
+import android.text.TextUtils;
 import android.util.Log;
 
-import java.util.Collections;
 import java.util.Date;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Comparator;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
 import com.fsck.k9.mail.store.ImapStore;
+import com.fsck.k9.mail.store.ImapResponseParser;
+import com.fsck.k9.mail.store.ImapResponseParser.ImapList;
 import com.fsck.k9.mail.store.ImapResponseParser.ImapResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.Locale;
 
 import static com.zegoggles.smssync.App.*;
@@ -46,15 +58,142 @@ public class BackupImapStore extends ImapStore {
       com.fsck.k9.mail.Store.SOCKET_READ_TIMEOUT = 60000 * 5;
     }
 
+    /** prefix of the sync state keys of folders which are known to exist */
+    private static final String FOLDER_STATE_PREFIX = "folder_uidvalidity:";
+
+    /** prefix of the sync state keys holding the highest restored UID of folders */
+    static final String RESTORE_STATE_PREFIX = "restored_uid:";
+
+    private static BackupImapStore sInstance;
+    private static String sInstanceUri;
+    private static boolean sInstanceCompression;
+    private static long sLastUsed;
+
     public BackupImapStore(final Context context) throws MessagingException {
+        this(context, PrefStore.getStoreUri(context));
+    }
+
+    private BackupImapStore(final Context context, final String storeUri) throws MessagingException {
         super(new Account(context) {
             @Override public String getStoreUri() {
-              return PrefStore.getStoreUri(context);
+              return storeUri;
+            }
+
+            /**
+             * Asked by K9 when opening a connection to a server advertising COMPRESS=DEFLATE
+             * (RFC 4978), the connection streams then get wrapped in deflate / inflate streams.
+             */
+            @Override public boolean useCompression(int networkType) {
+              final boolean compress = PrefStore.isImapCompressionEnabled(context);
+              if (LOCAL_LOGV) Log.v(TAG, "useCompression(" + networkType + ")=" + compress);
+              return compress;
             }
         });
         this.context = context;
     }
 
+    /**
+     * Returns a store shared by all services in this process. K9 keeps released connections
+     * in a pool and checks them with a NOOP before handing them out again (reconnecting if
+     * that fails), so consecutive backups can skip connecting and authenticating.
+     * <p/>
+     * A new store is created if the server settings, credentials or compression setting have
+     * changed, or if the store hasn't been used for longer than the configured keep alive time.
+     * The connections of a replaced store get closed. Call {@link #release()} once done with
+     * the store.
+     */
+    public static synchronized BackupImapStore getInstance(Context context) throws MessagingException {
+        final String storeUri = PrefStore.getStoreUri(context);
+        final long now = System.currentTimeMillis();
+        final long keepAlive = PrefStore.getConnectionKeepAliveSecs(context) * 1000L;
+        final boolean compression = PrefStore.isImapCompressionEnabled(context);
+
+        if (sInstance == null || storeUri == null || !storeUri.equals(sInstanceUri) ||
+            compression != sInstanceCompression || now - sLastUsed > keepAlive) {
+            if (sInstance != null) {
+                if (LOCAL_LOGV) Log.v(TAG, "discarding shared store");
+                sInstance.closeConnectionsAsync();
+            }
+            sInstance = new BackupImapStore(context.getApplicationContext(), storeUri);
+            sInstanceUri = storeUri;
+            sInstanceCompression = compression;
+        }
+        sLastUsed = now;
+        return sInstance;
+    }
+
+    /**
+     * Drops the shared store, the next call to {@link #getInstance(Context)} will
+     * create new connections.
+     */
+    public static synchronized void invalidate() {
+        if (sInstance != null) sInstance.closeConnectionsAsync();
+        sInstance = null;
+        sInstanceUri = null;
+    }
+
+    /**
+     * Marks the shared store as unused, the keep alive time starts counting from now
+     * (not from when the store was acquired, a backup can take longer than that).
+     */
+    public static synchronized void release() {
+        sLastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Logs out and closes the connections K9 keeps in its pool, in the background. K9 has
+     * no API for this, the pool and the connection class are private.
+     */
+    private void closeConnectionsAsync() {
+        new Thread("closeConnections") {
+            @Override public void run() { closeConnections(); }
+        }.start();
+    }
+
+    private void closeConnections() {
+        final List<?> connections;
+        try {
+            final Field field = ImapStore.class.getDeclaredField("mConnections");
+            field.setAccessible(true);
+            connections = (List<?>) field.get(this);
+        } catch (NoSuchFieldException e) {
+            Log.w(TAG, "could not access connection pool", e);
+            return;
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "could not access connection pool", e);
+            return;
+        }
+        if (connections == null) return;
+
+        final List<Object> pooled;
+        synchronized (connections) {
+            pooled = new ArrayList<Object>(connections);
+            connections.clear();
+        }
+        for (Object connection : pooled) {
+            invoke(connection, "executeSimpleCommand", "LOGOUT");
+            invoke(connection, "close");
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "closed " + pooled.size() + " pooled connections");
+    }
+
+    private static void invoke(Object connection, String name, String... args) {
+        try {
+            final Class<?>[] types = new Class<?>[args.length];
+            Arrays.fill(types, String.class);
+            final Method method = connection.getClass().getDeclaredMethod(name, types);
+            method.setAccessible(true);
+            method.invoke(connection, (Object[]) args);
+        } catch (NoSuchMethodException e) {
+            Log.w(TAG, "error closing connection", e);
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "error closing connection", e);
+        } catch (InvocationTargetException e) {
+            // e.g. server already closed the connection
+            if (LOCAL_LOGV) Log.v(TAG, "error closing connection", e.getCause());
+        }
+    }
+
     public BackupFolder getSMSBackupFolder() throws MessagingException
     {
         String label = PrefStore.getImapFolder(context);
@@ -73,12 +212,39 @@ public class BackupImapStore extends ImapStore {
 
         try {
           final BackupFolder folder = new BackupFolder(this, label, type);
+          final SyncStateStore state = SyncStateStore.get(context);
+          final String key = getFolderStateKey(label);
+
+          if (state.contains(key)) {
+              // the folder existed last time, skip LIST / CREATE
+              boolean opened = false;
+              try {
+                  folder.open(OpenMode.READ_WRITE);
+                  opened = true;
+              } catch (AuthenticationFailedException e) {
+                  throw e;
+              } catch (MessagingException e) {
+                  Log.w(TAG, "could not open folder '" + label + "', checking if it still exists", e);
+                  folder.close();
+                  state.remove(key);
+              }
+
+              if (opened) {
+                  final long uidValidity = folder.getUidValidity();
+                  if (uidValidity != state.getLong(key, -1)) {
+                      Log.i(TAG, "UIDVALIDITY of '" + label + "' has changed");
+                      state.putLong(key, uidValidity);
+                  }
+                  return folder;
+              }
+          }
 
           if (!folder.exists()) {
               folder.create(FolderType.HOLDS_MESSAGES);
               Log.i(TAG, "Label '" + label + "' does not exist yet. Creating.");
           }
           folder.open(OpenMode.READ_WRITE);
+          state.putLong(key, folder.getUidValidity());
           return folder;
         } catch (java.lang.NumberFormatException e) {
           // thrown inside K9
@@ -87,60 +253,523 @@ public class BackupImapStore extends ImapStore {
         }
     }
 
+    /**
+     * @return the key under which the UIDVALIDITY of a known folder is kept in the
+     * {@link SyncStateStore}
+     */
+    private String getFolderStateKey(String label) {
+        return FOLDER_STATE_PREFIX + PrefStore.getUsername(context) + "@" +
+                PrefStore.getServerAddress(context) + "/" + label;
+    }
+
+    /**
+     * Receives header fields fetched by {@link BackupFolder#scanHeaders}.
+     */
+    public interface HeaderHandler {
+        void onHeaders(long uid, String headers) throws MessagingException;
+
+        /**
+         * The index has been cleared and the whole folder gets scanned again, so all
+         * headers received so far will be passed in once more.
+         */
+        void reset();
+    }
+
+    /**
+     * @param headers a block of header fields
+     * @param name the name of the header field
+     * @return the (unfolded) value of the first field with this name, or null
+     */
+    static String parseHeader(String headers, String name) {
+        final String[] lines = headers.split("\\r?\\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].length() > name.length() &&
+                lines[i].charAt(name.length()) == ':' &&
+                lines[i].regionMatches(true, 0, name, 0, name.length())) {
+                final StringBuilder value = new StringBuilder(lines[i].substring(name.length() + 1));
+                // folded header
+                while (i + 1 < lines.length && lines[i + 1].length() > 0 &&
+                       Character.isWhitespace(lines[i + 1].charAt(0))) {
+                    value.append(lines[++i]);
+                }
+                return value.toString().trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param uids sorted UIDs
+     * @return a compact IMAP sequence set of the UIDs in [start, end), e.g. "1:4,7,9:10"
+     */
+    static String toUidSet(long[] uids, int start, int end) {
+        final StringBuilder sb = new StringBuilder();
+        int i = start;
+        while (i < end) {
+            int j = i;
+            while (j + 1 < end && uids[j + 1] == uids[j] + 1) j++;
+
+            if (sb.length() > 0) sb.append(',');
+            sb.append(uids[i]);
+            if (j > i) sb.append(':').append(uids[j]);
+            i = j + 1;
+        }
+        return sb.toString();
+    }
+
     public class BackupFolder extends ImapFolder {
+        /** RFC 3502, several messages per APPEND command */
+        private static final String CAPABILITY_MULTIAPPEND = "MULTIAPPEND";
+        /** RFC 4315, UID EXPUNGE of selected messages */
+        private static final String CAPABILITY_UIDPLUS = "UIDPLUS";
+        /** RFC 2088, literals which don't need a continuation from the server */
+        private static final String CAPABILITY_LITERAL_PLUS = "LITERAL+";
+        /**
+         * don't build MULTIAPPEND commands larger than this (bytes). K9 only takes commands as a
+         * String, so the whole command is held in memory (twice, as chars and encoded bytes).
+         */
+        private static final int MAX_MULTIAPPEND_SIZE = 256 * 1024;
+        /** number of UIDs covered by one header FETCH */
+        private static final int HEADER_SCAN_SIZE = 1000;
+        /** max number of UIDs flagged with one UID STORE */
+        private static final int STORE_BATCH_SIZE = 500;
+
         private final DataType type;
+        private Set<String> capabilities;
+        private long uidValidity = -1;
 
         public BackupFolder(ImapStore store, String name, DataType type) {
             super(store, name);
             this.type = type;
         }
 
-        public List<Message> getMessages(final int max, final boolean flagged, final Date since)
-          throws MessagingException {
-            if (LOCAL_LOGV) Log.v(TAG, String.format(Locale.ENGLISH, "getMessages(%d, %b, %s)", max, flagged, since));
-
-            final List<Message> messages;
-            final ImapSearcher searcher = new ImapSearcher() {
-                @Override public List<ImapResponse> search() throws IOException, MessagingException {
-                    final StringBuilder sb = new StringBuilder("UID SEARCH 1:*")
-                        .append(' ')
-                        .append(getQuery())
-                        .append(" UNDELETED");
-                    if (since != null) sb.append(" SENTSINCE ").append(RFC3501_DATE.format(since));
-                    if (flagged) sb.append(" FLAGGED");
-
-                    return executeSimpleCommand(sb.toString().trim());
+        @Override
+        public List<ImapResponse> internalOpen(OpenMode mode) throws MessagingException {
+            final List<ImapResponse> responses = super.internalOpen(mode);
+            if (responses != null) {
+                for (ImapResponse response : responses) {
+                    // * OK [UIDVALIDITY 3857529045] UIDs valid
+                    if (response.size() > 1 && response.get(1) instanceof ImapList) {
+                        final String value = ((ImapList) response.get(1)).getKeyedString("UIDVALIDITY");
+                        if (value != null) {
+                            try {
+                                uidValidity = Long.parseLong(value);
+                            } catch (NumberFormatException e) {
+                                Log.w(TAG, "invalid UIDVALIDITY: " + value);
+                            }
+                        }
+                    }
+                }
+            }
+            return responses;
+        }
+
+        /**
+         * Loads the stored index of Message-IDs in this folder and adds the Message-IDs of
+         * all messages which have been added since the last scan.
+         */
+        public MessageIdIndex getMessageIdIndex() throws MessagingException {
+            final MessageIdIndex index = MessageIdIndex.load(context, getStateKey());
+            scanHeaders(index, "MESSAGE-ID", new HeaderHandler() {
+                public void onHeaders(long uid, String headers) {
+                    index.add(parseHeader(headers, "Message-ID"));
+                }
+
+                public void reset() {
+                    // the index itself has been cleared
+                }
+            });
+            Log.i(TAG, "Message-ID index of " + getName() + " has " + index.size() + " entries");
+            return index;
+        }
+
+        /**
+         * Fetches header fields of all messages added since the last scan of the index. If the
+         * UIDVALIDITY of the folder has changed, or the folder holds a different number of
+         * messages than have been scanned (messages have been deleted), the index gets cleared
+         * and the whole folder is scanned again, after telling the handler to drop what it
+         * has received so far.
+         *
+         * @param index keeps track of the scanned UIDs
+         * @param fields names of the header fields, separated by spaces
+         * @param handler receives the headers of each message
+         */
+        public void scanHeaders(FolderIndex index, String fields, HeaderHandler handler)
+                throws MessagingException {
+            if (index.getUidValidity() != uidValidity) {
+                if (LOCAL_LOGV) Log.v(TAG, "UIDVALIDITY changed, rescanning " + getName());
+                index.reset(uidValidity);
+            }
+            scanNewHeaders(index, fields, handler);
+
+            final int exists = getMessageCount();
+            if (exists >= 0 && exists != index.getCount()) {
+                Log.i(TAG, String.format(Locale.ENGLISH, "%s has %d messages but %d have been scanned, rescanning",
+                        getName(), exists, index.getCount()));
+                index.reset(uidValidity);
+                handler.reset();
+                scanNewHeaders(index, fields, handler);
+            }
+        }
+
+        private void scanNewHeaders(FolderIndex index, String fields, HeaderHandler handler)
+                throws MessagingException {
+            // UIDs known when the folder was opened in chunks, then everything added since
+            final long last = uidNext > 0 ? uidNext - 1 : -1;
+            long from = index.getLastUid() + 1;
+            while (true) {
+                final long to = last != -1 && last - from >= HEADER_SCAN_SIZE ? from + HEADER_SCAN_SIZE - 1 : -1;
+                fetchHeaders(index, from, to, fields, handler);
+                if (to == -1) break;
+                from = to + 1;
+            }
+        }
+
+        /**
+         * Fetches header fields of a UID range and records the scanned messages in the index.
+         *
+         * @param to last UID, or -1 for all UIDs starting with from
+         */
+        private void fetchHeaders(FolderIndex index, long from, long to, String fields, HeaderHandler handler)
+                throws MessagingException {
+            final List<ImapResponse> responses;
+            try {
+                responses = executeSimpleCommand(String.format(Locale.ENGLISH,
+                        "UID FETCH %d:%s (UID BODY.PEEK[HEADER.FIELDS (%s)])",
+                        from, to == -1 ? "*" : Long.toString(to), fields));
+            } catch (IOException e) {
+                throw new MessagingException("error fetching headers of " + getName(), e);
+            }
+
+            long maxUid = -1;
+            int scanned = 0;
+            for (ImapResponse response : responses) {
+                // * 12 FETCH (UID 345 BODY[HEADER.FIELDS (MESSAGE-ID)] {60}
+                if (response.size() > 2 && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH") &&
+                    response.get(2) instanceof ImapList) {
+                    final ImapList fetchList = (ImapList) response.get(2);
+                    final long uid;
+                    try {
+                        uid = Long.parseLong(fetchList.getKeyedString("UID"));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "invalid UID in fetch response: " + fetchList);
+                        continue;
+                    }
+                    // responses are not necessarily sorted by UID
+                    if (uid < from || (to != -1 && uid > to)) continue;
+                    maxUid = Math.max(maxUid, uid);
+                    scanned++;
+
+                    for (Object o : fetchList) {
+                        // the header block is the only literal in the response
+                        if (o instanceof String && ((String) o).indexOf(':') != -1) {
+                            handler.onHeaders(uid, (String) o);
+                        }
+                    }
                 }
-            };
+            }
+            index.scanned(maxUid, scanned);
+        }
 
-            final Message[] msgs = search(searcher, null);
+        /**
+         * Deletes messages with as few UID STORE commands as possible. If the server supports
+         * UIDPLUS the messages get expunged, otherwise they are only flagged as deleted: a plain
+         * EXPUNGE would also remove other messages the user has flagged as deleted.
+         *
+         * @param uids the UIDs, sorted
+         * @param count number of UIDs to use from the array
+         * @return true if the messages have been expunged, false if they are still in the folder
+         */
+        public boolean deleteMessages(long[] uids, int count) throws MessagingException {
+            final boolean uidExpunge = hasCapability(CAPABILITY_UIDPLUS);
+            if (count == 0) return uidExpunge;
 
-            Log.i(TAG, "Found " + msgs.length + " msgs" + (since == null ? "" : " (since " + since + ")"));
-            if (max > 0 && msgs.length > max) {
+            try {
+                for (int offset = 0; offset < count; offset += STORE_BATCH_SIZE) {
+                    final String set = toUidSet(uids, offset, Math.min(offset + STORE_BATCH_SIZE, count));
+                    executeSimpleCommand("UID STORE " + set + " +FLAGS.SILENT (\\Deleted)");
+                    if (uidExpunge) executeSimpleCommand("UID EXPUNGE " + set);
+                }
+            } catch (IOException e) {
+                throw new MessagingException("error deleting messages in " + getName(), e);
+            }
+            if (!uidExpunge) {
+                Log.i(TAG, "no UIDPLUS, " + count + " message(s) in " + getName() + " only flagged as deleted");
+            }
+            return uidExpunge;
+        }
+
+        /**
+         * @return the key identifying this folder in the local sync state
+         */
+        public String getStateKey() {
+            return getFolderStateKey(getName());
+        }
+        /**
+         * @return the UIDVALIDITY reported when the folder was opened, or -1 if unknown
+         */
+        public long getUidValidity() {
+            return uidValidity;
+        }
+
+        /**
+         * @return the UIDNEXT reported when the folder was opened, or -1 if unknown
+         */
+        public long getUidNext() {
+            return uidNext > 0 ? uidNext : -1;
+        }
+
+        /**
+         * @return the highest UID up to which all messages have been restored, or -1 if the
+         *         folder hasn't been restored yet or its UIDVALIDITY has changed since
+         */
+        public long getRestoredUid() {
+            final SyncStateStore state = SyncStateStore.get(context);
+            final String key = getRestoreStateKey();
+            if (uidValidity == -1 || state.getLong(key + "/uidvalidity", -1) != uidValidity) {
+                return -1;
+            }
+            return state.getLong(key, -1);
+        }
+
+        /**
+         * Records that all messages up to a UID have been restored.
+         *
+         * @param uid the highest restored UID
+         */
+        public void setRestoredUid(long uid) {
+            if (uidValidity == -1 || uid <= 0) return;
+
+            final String key = getRestoreStateKey();
+            final Map<String, Long> values = new HashMap<String, Long>(2);
+            values.put(key, uid);
+            values.put(key + "/uidvalidity", uidValidity);
+            SyncStateStore.get(context).putLongs(values);
+        }
+
+        private String getRestoreStateKey() {
+            return RESTORE_STATE_PREFIX + getStateKey() + "/" + type;
+        }
+
+        /**
+         * Appends all messages in one MULTIAPPEND command if the server supports it, otherwise
+         * falls back to K9's implementation which sends one APPEND per message.
+         */
+        @Override
+        public void appendMessages(Message[] messages) throws MessagingException {
+            try {
+                appendMessagesInternal(messages);
+            } finally {
+                // spooled attachments are only needed while appending
+                for (Message message : messages) {
+                    CursorToMessage.MmsAttachmentBody.release(message);
+                }
+            }
+        }
+
+        private void appendMessagesInternal(Message[] messages) throws MessagingException {
+            if (messages.length > 1 &&
+                hasCapability(CAPABILITY_MULTIAPPEND) &&
+                hasCapability(CAPABILITY_LITERAL_PLUS)) {
+
+                final String command = getMultiAppendCommand(messages);
+                if (command != null) {
+                    if (LOCAL_LOGV) Log.v(TAG, "appending " + messages.length + " messages with MULTIAPPEND");
+                    try {
+                        executeSimpleCommand(command);
+                        return;
+                    } catch (IOException e) {
+                        throw new MessagingException("MULTIAPPEND failed", e);
+                    }
+                }
+            }
+            super.appendMessages(messages);
+        }
+
+        protected boolean hasCapability(String capability) throws MessagingException {
+            if (capabilities == null) {
+                final Set<String> caps = new HashSet<String>();
+                try {
+                    for (ImapResponse response : executeSimpleCommand("CAPABILITY")) {
+                        if (response.size() > 0 && "CAPABILITY".equalsIgnoreCase(response.getString(0))) {
+                            for (int i = 1; i < response.size(); i++) {
+                                caps.add(response.getString(i).toUpperCase(Locale.ENGLISH));
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new MessagingException("CAPABILITY failed", e);
+                }
+                if (LOCAL_LOGV) Log.v(TAG, "server capabilities: " + caps);
+                capabilities = caps;
+            }
+            return capabilities.contains(capability);
+        }
+
+        /**
+         * @return a MULTIAPPEND command using non-synchronizing literals, or null if
+         *         the messages can't be sent that way (too big, 8bit content, odd folder name)
+         */
+        private String getMultiAppendCommand(Message[] messages) throws MessagingException {
+            final String name = getPrefixedName();
+            if (!isPlainAscii(name) || name.indexOf('&') >= 0 ||
+                name.indexOf('"') >= 0 || name.indexOf('\\') >= 0) {
+                return null;
+            }
+
+            final StringBuilder command = new StringBuilder("APPEND \"").append(name).append('"');
+            // one buffer for all messages, copied straight into the command
+            final AsciiBuffer out = new AsciiBuffer();
+            try {
+                for (Message message : messages) {
+                    out.reset();
+                    final EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
+                    message.writeTo(eolOut);
+                    eolOut.flush();
+
+                    if (command.length() + out.size() > MAX_MULTIAPPEND_SIZE) return null;
+
+                    final Date date = message.getInternalDate() != null ? message.getInternalDate() : new Date();
+                    command.append(" (").append(combineFlags(message.getFlags())).append(")")
+                           .append(" \"").append(INTERNAL_DATE.format(date)).append('"')
+                           .append(" {").append(out.size()).append("+}\r\n");
+                    if (!out.appendTo(command)) return null;
+                }
+            } catch (IOException e) {
+                throw new MessagingException("error writing message", e);
+            }
+            return command.toString();
+        }
+
+        /**
+         * Searches for backed up messages. Only the UIDs are kept in memory, use
+         * {@link #fetchMessages(long[], int, int)} to retrieve the messages themselves.
+         *
+         * @param max the maximum number of messages (the most recent ones), or -1 for all
+         * @param flagged only return flagged messages
+         * @param since only return messages sent after this date, or null
+         * @param afterUid only return messages with a higher UID (see {@link #getRestoredUid}), or -1
+         * @return the message UIDs, in the order they should be restored (oldest first)
+         */
+        public long[] getMessageUids(final int max, final boolean flagged, final Date since, final long afterUid)
+          throws MessagingException {
+            if (LOCAL_LOGV) Log.v(TAG, String.format(Locale.ENGLISH, "getMessageUids(%d, %b, %s, %d)",
+                    max, flagged, since, afterUid));
+
+            if (afterUid > 0 && getUidNext() != -1 && afterUid >= getUidNext() - 1) {
+                Log.i(TAG, "No new msgs in " + getName() + " since UID " + afterUid);
+                return new long[0];
+            }
+
+            final StringBuilder sb = new StringBuilder("UID SEARCH ")
+                .append(afterUid > 0 ? afterUid + 1 : 1).append(":*")
+                .append(' ')
+                .append(getQuery())
+                .append(" UNDELETED");
+            if (since != null) sb.append(" SENTSINCE ").append(RFC3501_DATE.format(since));
+            if (flagged) sb.append(" FLAGGED");
+
+            long[] uids = searchUids(sb.toString().trim());
+            if (afterUid > 0) {
+                // "n:*" always includes the highest UID, even if it is below n
+                int start = 0;
+                while (start < uids.length && uids[start] <= afterUid) start++;
+                if (start > 0) uids = copyOf(uids, start, uids.length);
+            }
+
+            Log.i(TAG, "Found " + uids.length + " msgs" + (since == null ? "" : " (since " + since + ")"));
+            final long[] result;
+            if (max > 0 && uids.length > max) {
                 if (LOCAL_LOGV) Log.v(TAG, "Fetching envelopes");
 
+                final Message[] msgs = new Message[uids.length];
+                for (int i = 0; i < uids.length; i++) {
+                    msgs[i] = getMessage(Long.toString(uids[i]));
+                }
                 FetchProfile fp = new FetchProfile();
                 fp.add(FetchProfile.Item.DATE);
                 fetch(msgs, fp, null);
 
                 if (LOCAL_LOGV) Log.v(TAG, "Sorting");
-                //Debug.startMethodTracing("sorting");
                 Arrays.sort(msgs, MessageComparator.INSTANCE);
-                //Debug.stopMethodTracing();
                 if (LOCAL_LOGV) Log.v(TAG, "Sorting done");
 
-                messages = new ArrayList<Message>(max);
-                messages.addAll(Arrays.asList(msgs).subList(0, max));
+                // the most recent ones, oldest first
+                result = new long[max];
+                for (int i = 0; i < max; i++) {
+                    result[i] = Long.parseLong(msgs[max - 1 - i].getUid());
+                }
             } else {
-                messages = new ArrayList<Message>(msgs.length);
-                Collections.addAll(messages, msgs);
+                // already in UID order, i.e. the order they were backed up in
+                result = uids;
+            }
+            return result;
+        }
+
+        /**
+         * Fetches complete messages. K9 requests them with a few multi-UID FETCH commands instead
+         * of one command per message, and stores the bodies in temporary files.
+         *
+         * @param uids the UIDs as returned by {@link #getMessageUids(int, boolean, Date, long)}
+         * @param offset index of the first UID to fetch
+         * @param count number of messages to fetch
+         * @return the fetched messages
+         */
+        public Message[] fetchMessages(long[] uids, int offset, int count) throws MessagingException {
+            final Message[] messages = new Message[count];
+            for (int i = 0; i < count; i++) {
+                messages[i] = getMessage(Long.toString(uids[offset + i]));
             }
+            if (LOCAL_LOGV) Log.v(TAG, "fetching " + count + " messages");
 
-            Collections.reverse(messages);
-            
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.BODY);
+            fetch(messages, fp, null);
             return messages;
         }
 
+        private long[] searchUids(String command) throws MessagingException {
+            final List<ImapResponse> responses;
+            try {
+                responses = executeSimpleCommand(command);
+            } catch (IOException e) {
+                throw new MessagingException("error searching " + getName(), e);
+            }
+
+            int count = 0;
+            long[] uids = new long[64];
+            for (ImapResponse response : responses) {
+                // * SEARCH 2 3 5 7
+                if (response.size() > 0 && ImapResponseParser.equalsIgnoreCase(response.get(0), "SEARCH")) {
+                    for (int i = 1; i < response.size(); i++) {
+                        if (count == uids.length) uids = copyOf(uids, count * 2);
+                        try {
+                            uids[count++] = Long.parseLong(response.getString(i));
+                        } catch (NumberFormatException e) {
+                            Log.w(TAG, "invalid UID in search response: " + response.get(i));
+                            count--;
+                        }
+                    }
+                }
+            }
+            Arrays.sort(uids, 0, count);
+            return copyOf(uids, count);
+        }
+
+        // Arrays.copyOf() is only available from API level 9
+        private long[] copyOf(long[] array, int length) {
+            final long[] copy = new long[length];
+            System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+            return copy;
+        }
+
+        // same for Arrays.copyOfRange()
+        private long[] copyOf(long[] array, int from, int to) {
+            final long[] copy = new long[to - from];
+            System.arraycopy(array, from, copy, 0, to - from);
+            return copy;
+        }
+
         private String getQuery() {
            switch(this.type) {
             /* MMS/SMS are special cases since we need to support legacy backup headers */
@@ -162,10 +791,47 @@ public class BackupImapStore extends ImapStore {
            }
         }
 
+        private String combineFlags(Flag[] flags) {
+            final List<String> flagNames = new ArrayList<String>();
+            for (Flag flag : flags) {
+                switch (flag) {
+                    case SEEN:     flagNames.add("\\Seen"); break;
+                    case FLAGGED:  flagNames.add("\\Flagged"); break;
+                    case ANSWERED: flagNames.add("\\Answered"); break;
+                    case DELETED:  flagNames.add("\\Deleted"); break;
+                    default:
+                }
+            }
+            return TextUtils.join(" ", flagNames);
+        }
+
+        private boolean isPlainAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) > 127) return false;
+            }
+            return true;
+        }
+
         @Override public boolean equals(Object o) { return super.equals(o); }
         @Override public int hashCode() { return super.hashCode(); }
     }
 
+    /**
+     * A byte buffer which can be appended to a command without copying it first.
+     */
+    static class AsciiBuffer extends ByteArrayOutputStream {
+        /**
+         * @return false if the buffer is not plain ASCII
+         */
+        boolean appendTo(StringBuilder sb) {
+            for (int i = 0; i < count; i++) {
+                if (buf[i] < 0) return false;
+                sb.append((char) buf[i]);
+            }
+            return true;
+        }
+    }
+
     static class MessageComparator implements Comparator<Message> {
       static final MessageComparator INSTANCE = new MessageComparator();
       static final Date EARLY = new Date(0);
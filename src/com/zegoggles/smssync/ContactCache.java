@@ -0,0 +1,213 @@
+package com.zegoggles.smssync;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Build;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * The contacts resolved for addresses, kept in a file between runs so that incremental
+ * backups of a few messages don't need to load the {@link ContactDirectory}.
+ * Addresses without a contact are cached as well.
+ * <p/>
+ * The cache is dropped when the contacts change. This is detected with a fingerprint of
+ * the raw contacts (count, max id and sum of versions), which only needs to be queried
+ * once per process: after that a {@link ContentObserver} reports changes.
+ */
+@TargetApi(5)
+public class ContactCache {
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 2000;
+    private static final String FILE_NAME = "contacts.cache";
+
+    private static ContactCache sInstance;
+    /** set by the observer, or initially to force a check of the fingerprint */
+    private static volatile boolean sChanged = true;
+    private static ContentObserver sObserver;
+
+    private final File file;
+    private final PhoneNumberIndex<ContactDirectory.Contact> entries =
+            new PhoneNumberIndex<ContactDirectory.Contact>(MAX_ENTRIES);
+    private long fingerprint;
+    private boolean modified;
+
+    private ContactCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param context the context
+     * @return the cache, or null if it is not available on this platform
+     */
+    public static synchronized ContactCache getInstance(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ECLAIR) return null;
+
+        if (sObserver == null) {
+            sObserver = new ContentObserver(null) {
+                @Override public void onChange(boolean selfChange) {
+                    sChanged = true;
+                }
+            };
+            context.getApplicationContext().getContentResolver()
+                    .registerContentObserver(ContactsContract.AUTHORITY_URI, true, sObserver);
+        }
+        if (sInstance == null) {
+            sInstance = new ContactCache(new File(context.getFilesDir(), FILE_NAME));
+            sInstance.read();
+        }
+        if (sChanged) {
+            sChanged = false;
+            sInstance.validate(context.getContentResolver());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Saves the cache, if it has been used in this process.
+     */
+    public static synchronized void saveInstance() {
+        if (sInstance != null) sInstance.save();
+    }
+
+    public synchronized boolean contains(String address) {
+        return entries.containsKey(address);
+    }
+
+    /**
+     * @return the cached contact, or null if the address has no contact (or is not cached)
+     */
+    public synchronized ContactDirectory.Contact get(String address) {
+        return entries.get(address);
+    }
+
+    /**
+     * @param address the address
+     * @param contact the contact, or null if the address has no contact
+     */
+    public synchronized void put(String address, ContactDirectory.Contact contact) {
+        entries.put(address, contact);
+        modified = true;
+    }
+
+    public synchronized void save() {
+        if (!modified) return;
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, ContactDirectory.Contact> e : entries.entrySet()) {
+                final ContactDirectory.Contact contact = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeBoolean(contact != null);
+                if (contact != null) {
+                    out.writeLong(contact.id);
+                    writeString(out, contact.name);
+                    writeString(out, contact.email);
+                }
+            }
+            modified = false;
+            if (LOCAL_LOGV) Log.v(TAG, "saved " + entries.size() + " contacts to " + file);
+        } catch (IOException e) {
+            Log.w(TAG, "error writing " + file, e);
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Drops the cached entries if the contacts have changed since they were cached.
+     */
+    private synchronized void validate(ContentResolver resolver) {
+        final long current;
+        try {
+            current = fingerprint(resolver);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "error reading contacts", e);
+            return;
+        }
+        if (current != fingerprint) {
+            if (LOCAL_LOGV) Log.v(TAG, "contacts changed, clearing " + entries.size() + " cached contacts");
+            entries.clear();
+            fingerprint = current;
+            modified = true;
+            ContactDirectory.invalidate();
+        }
+    }
+
+    private static long fingerprint(ContentResolver resolver) {
+        final Cursor c = resolver.query(RawContacts.CONTENT_URI,
+                new String[] { RawContacts._ID, RawContacts.VERSION }, null, null, null);
+        if (c == null) return 0;
+        try {
+            long maxId = 0, versions = 0;
+            while (c.moveToNext()) {
+                maxId = Math.max(maxId, c.getLong(0));
+                versions += c.getLong(1);
+            }
+            return DuplicateIndex.hashValues(String.valueOf(c.getCount()),
+                    String.valueOf(maxId), String.valueOf(versions));
+        } finally {
+            c.close();
+        }
+    }
+
+    private synchronized void read() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) throw new IOException("unknown version");
+
+            fingerprint = in.readLong();
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                ContactDirectory.Contact contact = null;
+                if (in.readBoolean()) {
+                    contact = new ContactDirectory.Contact(in.readLong(), readString(in));
+                    contact.email = readString(in);
+                }
+                entries.put(key, contact);
+            }
+        } catch (FileNotFoundException ignored) {
+        } catch (IOException e) {
+            Log.w(TAG, "error reading " + file, e);
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,164 @@
+package com.zegoggles.smssync;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Phone numbers, names and primary emails of all contacts, loaded with one query for
+ * phone numbers and one for emails instead of two queries per looked up address.
+ * <p/>
+ * Numbers are indexed by their last {@link PhoneNumbers#MIN_MATCH} digits and then compared with
+ * {@link PhoneNumberUtils#compare}, which is close to what the phone_lookup filter does.
+ * The directory is shared by backup, restore and calendar sync, and reloaded after
+ * {@link #MAX_AGE_MILLIS} or when {@link ContactCache} notices changed contacts.
+ */
+@TargetApi(5)
+public class ContactDirectory {
+    static final long MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    private static ContactDirectory sInstance;
+
+    private final Map<String, Entry> numbers = new HashMap<String, Entry>();
+    private final long loadedAt = SystemClock.elapsedRealtime();
+
+    public static class Contact {
+        public final long id;
+        public final String name;
+        /** the primary email, or null if the contact has none */
+        public String email;
+
+        Contact(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    private static class Entry {
+        final String number;
+        final Contact contact;
+        final Entry next;
+
+        Entry(String number, Contact contact, Entry next) {
+            this.number = number;
+            this.contact = contact;
+            this.next = next;
+        }
+    }
+
+    private ContactDirectory() {
+    }
+
+    /**
+     * @param context the context
+     * @return the directory, or null if it is not available on this platform or
+     *         could not be loaded
+     */
+    public static synchronized ContactDirectory getInstance(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ECLAIR) return null;
+
+        if (sInstance == null || SystemClock.elapsedRealtime() - sInstance.loadedAt > MAX_AGE_MILLIS) {
+            sInstance = null;
+            try {
+                final ContactDirectory directory = new ContactDirectory();
+                if (directory.load(context.getContentResolver())) {
+                    sInstance = directory;
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "error loading contacts", e);
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Reload the directory on next use, e.g. because the contacts have changed.
+     */
+    public static synchronized void invalidate() {
+        sInstance = null;
+    }
+
+    /**
+     * @param number the phone number
+     * @return the contact with this number, or null if there is none
+     */
+    public Contact lookup(String number) {
+        if (number == null) return null;
+        for (Entry e = numbers.get(key(number)); e != null; e = e.next) {
+            if (PhoneNumberUtils.compare(number, e.number)) return e.contact;
+        }
+        return null;
+    }
+
+    private boolean load(ContentResolver resolver) {
+        final Map<Long, Contact> contacts = new HashMap<Long, Contact>();
+
+        final Cursor phones = resolver.query(Phone.CONTENT_URI,
+                new String[] { Phone.CONTACT_ID, Phone.DISPLAY_NAME, Phone.NUMBER },
+                null, null, null);
+        if (phones == null) return false;
+        try {
+            while (phones.moveToNext()) {
+                final String number = phones.getString(2);
+                if (number == null) continue;
+
+                final long id = phones.getLong(0);
+                Contact contact = contacts.get(id);
+                if (contact == null) {
+                    contact = new Contact(id, phones.getString(1));
+                    contacts.put(id, contact);
+                }
+                final String key = key(number);
+                numbers.put(key, new Entry(number, contact, numbers.get(key)));
+            }
+        } finally {
+            phones.close();
+        }
+
+        final Cursor emails = resolver.query(Email.CONTENT_URI,
+                new String[] { Email.CONTACT_ID, Email.DATA },
+                null, null,
+                Email.CONTACT_ID + ", " + Email.IS_PRIMARY + " DESC");
+        if (emails != null) {
+            try {
+                while (emails.moveToNext()) {
+                    final Contact contact = contacts.get(emails.getLong(0));
+                    if (contact == null) continue;
+
+                    // pick the primary address, unless there's a Gmail address
+                    final String email = emails.getString(1);
+                    if (contact.email == null ||
+                        (CursorToMessage.isGmailAddress(email) && !CursorToMessage.isGmailAddress(contact.email))) {
+                        contact.email = email;
+                    }
+                }
+            } finally {
+                emails.close();
+            }
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "loaded " + contacts.size() + " contacts, " + numbers.size() + " numbers");
+        return true;
+    }
+
+    /**
+     * @return the last {@link PhoneNumbers#MIN_MATCH} digits of the number, or the whole
+     *         normalized number if it is shorter (e.g. short codes, alphanumeric senders)
+     */
+    static String key(String number) {
+        final String normalized = PhoneNumbers.normalize(number);
+        final String suffix = PhoneNumbers.suffix(normalized);
+        return suffix != null ? suffix : normalized;
+    }
+}
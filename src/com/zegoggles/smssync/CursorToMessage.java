@@ -22,9 +22,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.LinkedHashMap;
 import java.util.Random;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -53,6 +53,7 @@ import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Message.RecipientType;
+import com.fsck.k9.mail.Multipart;
 import com.fsck.k9.mail.filter.Base64OutputStream;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
@@ -61,6 +62,8 @@ import com.fsck.k9.mail.internet.MimeMultipart;
 import com.fsck.k9.mail.internet.TextBody;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.james.mime4j.codec.EncoderUtil;
 
 import com.zegoggles.smssync.PrefStore.AddressStyle;
@@ -80,7 +83,6 @@ public class CursorToMessage {
     public enum DataType { MMS, SMS, CALLLOG }
 
     private static final String REFERENCE_UID_TEMPLATE = "<%s.%s@sms-backup-plus.local>";
-    private static final String MSG_ID_TEMPLATE = "<%s@sms-backup-plus.local>";
 
     private static final boolean NEW_CONTACT_API = Build.VERSION.SDK_INT >=
                                                    Build.VERSION_CODES.ECLAIR;
@@ -104,6 +106,29 @@ public class CursorToMessage {
         CallLog.Calls.TYPE
     };
 
+    // the fields used to build the messages, order matches the constants in SmsRow / MmsRow
+    public static final String[] SMS_PROJECTION = {
+        SmsConsts.ID,
+        SmsConsts.ADDRESS,
+        SmsConsts.BODY,
+        SmsConsts.TYPE,
+        SmsConsts.DATE,
+        SmsConsts.THREAD_ID,
+        SmsConsts.READ,
+        SmsConsts.STATUS,
+        SmsConsts.PROTOCOL,
+        SmsConsts.SERVICE_CENTER
+    };
+
+    public static final String[] MMS_PROJECTION = {
+        MmsConsts.ID,
+        MmsConsts.TYPE,
+        MmsConsts.DATE,
+        MmsConsts.THREAD_ID,
+        MmsConsts.READ,
+        MmsConsts.MSG_BOX
+    };
+
     private static final String UNKNOWN_NUMBER = "unknown.number";
     private static final String UNKNOWN_EMAIL  = "unknown.email";
 
@@ -114,19 +139,27 @@ public class CursorToMessage {
     private final Address mUserAddress;
     private final ThreadHelper threadHelper = new ThreadHelper();
 
-    // simple LRU cache
-    @SuppressWarnings("serial")
-    private final Map<String, PersonRecord> mPeopleCache =
-      new LinkedHashMap<String, PersonRecord>(MAX_PEOPLE_CACHE_SIZE+1, .75F, true) {
-            @Override
-            public boolean removeEldestEntry(Map.Entry<String, PersonRecord> eldest) {
-              return size() > MAX_PEOPLE_CACHE_SIZE;
-            }
-       };
+    // LRU cache of contact lookups, differently formatted versions of a number share an entry
+    private final PhoneNumberIndex<ContactDirectory.Contact> mPeopleCache =
+      new PhoneNumberIndex<ContactDirectory.Contact>(MAX_PEOPLE_CACHE_SIZE);
+    /** cached for numbers which don't belong to a contact */
+    private static final ContactDirectory.Contact NO_CONTACT = new ContactDirectory.Contact(-1, null);
 
     private String mReferenceValue;
     private final boolean mMarkAsRead;
     private final boolean mPrefix;
+    /** whether the calendar sync needs the call log rows as maps */
+    private final boolean mKeepCallLogMaps;
+
+    /* reused for every converted row */
+    private final SmsRow mSmsRow = new SmsRow();
+    private final MmsRow mMmsRow = new MmsRow();
+    private final CallLogRow mCallLogRow = new CallLogRow();
+    private final MmsLoader mMmsLoader;
+    /** if set, repeated MMS attachments get replaced by references */
+    private AttachmentIndex mAttachmentIndex;
+    /** if set, large MMS images get scaled down */
+    private final ImageScaler mImageScaler;
 
     /** used for whitelisting specific contacts */
     private final ContactAccessor.GroupContactIds allowedIds;
@@ -146,6 +179,7 @@ public class CursorToMessage {
         String BACKUP_TIME    = "X-smssync-backup-time";
         String VERSION        = "X-smssync-version";
         String DURATION       = "X-smssync-duration";
+        String ATTACHMENT_SHA1 = "X-smssync-attachment-sha1";
     }
 
     public CursorToMessage(Context ctx, String userEmail) {
@@ -155,6 +189,10 @@ public class CursorToMessage {
         mReferenceValue = PrefStore.getReferenceUid(ctx);
         mPrefix         = PrefStore.getMailSubjectPrefix(mContext);
         mStyle          = PrefStore.getEmailAddressStyle(ctx);
+        mKeepCallLogMaps = PrefStore.isCallLogCalendarSyncEnabled(ctx);
+        mMmsLoader      = new MmsLoader(ctx.getContentResolver());
+        final int maxImageSize = PrefStore.getMmsImageMaxSize(ctx);
+        mImageScaler    = maxImageSize > 0 ? new ImageScaler(ctx, maxImageSize) : null;
 
         if (mReferenceValue == null) {
           mReferenceValue = generateReferenceValue();
@@ -171,33 +209,34 @@ public class CursorToMessage {
         Log.d(TAG, String.format(Locale.ENGLISH, "using %s contacts API", NEW_CONTACT_API ? "new" : "old"));
     }
 
-    public ConversionResult cursorToMessages(final Cursor cursor, final int maxEntries,
-                                             DataType dataType) throws MessagingException {
-        final String[] columns = cursor.getColumnNames();
-        final ConversionResult result = new ConversionResult(dataType);
-        do {
-            final long date = cursor.getLong(cursor.getColumnIndex(SmsConsts.DATE));
-            if (date > result.maxDate) {
-              result.maxDate = date;
-            }
-            final Map<String, String> msgMap = new HashMap<String, String>(columns.length);
-            for (int i = 0; i < columns.length; i++) {
-                msgMap.put(columns[i], cursor.getString(i));
-            }
-
-            Message m = null;
-            switch (dataType) {
-              case SMS: m = messageFromMapSms(msgMap); break;
-              case MMS: m = messageFromMapMms(msgMap); break;
-              case CALLLOG: m = messageFromMapCallLog(msgMap); break;
-            }
-            if (m != null) {
-              result.messageList.add(m);
-              result.mapList.add(msgMap);
-            }
-        } while (result.messageList.size() < maxEntries && cursor.moveToNext());
+    /**
+     * Converts the row the cursor is currently positioned on and adds it to the result.
+     */
+    public void cursorToMessage(final Cursor cursor, final ConversionResult result) throws MessagingException {
+        final Row row;
+        switch (result.type) {
+          case SMS: row = mSmsRow; break;
+          case MMS: row = mMmsRow; break;
+          case CALLLOG: row = mCallLogRow; break;
+          default: throw new IllegalArgumentException("unknown type: " + result.type);
+        }
+        row.read(cursor);
+        if (row.getDate() > result.maxDate) {
+          result.maxDate = row.getDate();
+        }
 
-       return result;
+        Message m = null;
+        switch (result.type) {
+          case SMS: m = messageFromSms(mSmsRow); break;
+          case MMS: m = messageFromMms(mMmsRow); break;
+          case CALLLOG: m = messageFromCallLog(mCallLogRow); break;
+        }
+        if (m != null) {
+          result.messageList.add(m);
+          if (result.type == DataType.CALLLOG && mKeepCallLogMaps) {
+            result.mapList.add(mCallLogRow.toMap());
+          }
+        }
     }
 
     public ContentValues messageToContentValues(final Message message)
@@ -288,8 +327,8 @@ public class CursorToMessage {
         }
     }
 
-    /* Look up a person */
-    public PersonRecord lookupPerson(final String address) {
+    /* Look up a person, might be called from the converter and upload threads */
+    public synchronized PersonRecord lookupPerson(final String address) {
         if (TextUtils.isEmpty(address)) {
             final PersonRecord record = new PersonRecord();
             record.number = "-1";
@@ -297,34 +336,62 @@ public class CursorToMessage {
             record.unknown = true;
             return record;
         }
-        else if (!mPeopleCache.containsKey(address)) {
-            Uri personUri = Uri.withAppendedPath(NEW_CONTACT_API ? ECLAIR_CONTENT_FILTER_URI :
-                                                 Phones.CONTENT_FILTER_URL, Uri.encode(address));
+        ContactDirectory.Contact contact = mPeopleCache.get(address);
+        if (contact == null) {
+            contact = lookupContact(address);
+            if (contact == null && LOCAL_LOGV) Log.v(TAG, "Looked up unknown address: " + address);
+            mPeopleCache.put(address, contact != null ? contact : NO_CONTACT);
+        }
+        // the number (and the id of unknown people) come from the address, not the cached entry
+        return createPersonRecord(address, contact == NO_CONTACT ? null : contact);
+    }
 
-            Cursor c = mContext.getContentResolver().query(personUri, PHONE_PROJECTION, null, null, null);
-            final PersonRecord record = new PersonRecord();
-            if (c != null && c.moveToFirst()) {
-                record._id    = c.getLong(c.getColumnIndex(PHONE_PROJECTION[0]));
-                record.name   = sanitize(c.getString(c.getColumnIndex(PHONE_PROJECTION[1])));
-                record.number = sanitize(NEW_CONTACT_API ? address :
-                                                  c.getString(c.getColumnIndex(PHONE_PROJECTION[2])));
-                record.email  = getPrimaryEmail(record._id, record.number);
-            } else {
-                if (LOCAL_LOGV) Log.v(TAG, "Looked up unknown address: " + address);
+    /**
+     * @return the contact with this number, or null if there is none
+     */
+    private ContactDirectory.Contact lookupContact(final String address) {
+        final ContactCache cache = NEW_CONTACT_API ? ContactCache.getInstance(mContext) : null;
+        if (cache != null && cache.contains(address)) {
+            return cache.get(address);
+        }
+        final ContactDirectory directory = NEW_CONTACT_API ? ContactDirectory.getInstance(mContext) : null;
+        if (directory != null) {
+            final ContactDirectory.Contact contact = directory.lookup(address);
+            if (cache != null) cache.put(address, contact);
+            return contact;
+        }
 
-                record.number = sanitize(address);
-                record.email  = getUnknownEmail(address);
-                record.unknown = true;
-            }
-            mPeopleCache.put(address, record);
+        Uri personUri = Uri.withAppendedPath(NEW_CONTACT_API ? ECLAIR_CONTENT_FILTER_URI :
+                                             Phones.CONTENT_FILTER_URL, Uri.encode(address));
+
+        Cursor c = mContext.getContentResolver().query(personUri, PHONE_PROJECTION, null, null, null);
+        ContactDirectory.Contact contact = null;
+        if (c != null && c.moveToFirst()) {
+            contact = new ContactDirectory.Contact(c.getLong(c.getColumnIndex(PHONE_PROJECTION[0])),
+                                                   c.getString(c.getColumnIndex(PHONE_PROJECTION[1])));
+            contact.email = getPrimaryEmail(contact.id);
+        }
+        if (c != null) c.close();
+        return contact;
+    }
 
-            if (c != null) c.close();
+    private PersonRecord createPersonRecord(String address, ContactDirectory.Contact contact) {
+        final PersonRecord record = new PersonRecord();
+        if (contact != null) {
+            record._id    = contact.id;
+            record.name   = sanitize(contact.name);
+            record.number = sanitize(address);
+            record.email  = contact.email != null ? contact.email : getUnknownEmail(record.number);
+        } else {
+            record.number = sanitize(address);
+            record.email  = getUnknownEmail(address);
+            record.unknown = true;
         }
-        return mPeopleCache.get(address);
+        return record;
     }
 
-	private Message messageFromMapSms(Map<String, String> msgMap) throws MessagingException {
-        final String address = msgMap.get(SmsConsts.ADDRESS);
+	private Message messageFromSms(SmsRow row) throws MessagingException {
+        final String address = row.address;
         if (address == null || address.trim().length() == 0) {
            return null;
         }
@@ -333,9 +400,9 @@ public class CursorToMessage {
 
         final Message msg = new MimeMessage();
         msg.setSubject(getSubject(DataType.SMS, record));
-        msg.setBody(new TextBody(msgMap.get(SmsConsts.BODY)));
+        msg.setBody(new TextBody(row.body));
 
-        final int messageType = Integer.valueOf(msgMap.get(SmsConsts.TYPE));
+        final int messageType = row.type;
         if (SmsConsts.MESSAGE_TYPE_INBOX == messageType) {
             // Received message
             msg.setFrom(record.getAddress());
@@ -346,28 +413,28 @@ public class CursorToMessage {
             msg.setFrom(mUserAddress);
         }
 
-        try {
-          final Date then = new Date(Long.valueOf(msgMap.get(SmsConsts.DATE)));
+        if (row.date != Row.MISSING) {
+          final Date then = new Date(row.date);
           msg.setSentDate(then);
           msg.setInternalDate(then);
-          msg.setHeader("Message-ID", createMessageId(then, address, messageType));
-        } catch (NumberFormatException n) {
-          Log.e(TAG, "error parsing date", n);
+          msg.setHeader("Message-ID", MessageIdGenerator.createMessageId(then.getTime(), address, messageType));
+        } else {
+          Log.e(TAG, "sms without date");
         }
 
         // Threading by person ID, not by thread ID. I think this value is more stable.
         msg.setHeader("References",
                       String.format(REFERENCE_UID_TEMPLATE, mReferenceValue, sanitize(record.getId())));
-        msg.setHeader(Headers.ID, msgMap.get(SmsConsts.ID));
+        msg.setHeader(Headers.ID, row.id);
         msg.setHeader(Headers.ADDRESS, sanitize(address));
         msg.setHeader(Headers.DATATYPE, DataType.SMS.toString());
-        msg.setHeader(Headers.TYPE, msgMap.get(SmsConsts.TYPE));
-        msg.setHeader(Headers.DATE, msgMap.get(SmsConsts.DATE));
-        msg.setHeader(Headers.THREAD_ID, msgMap.get(SmsConsts.THREAD_ID));
-        msg.setHeader(Headers.READ, msgMap.get(SmsConsts.READ));
-        msg.setHeader(Headers.STATUS, msgMap.get(SmsConsts.STATUS));
-        msg.setHeader(Headers.PROTOCOL, msgMap.get(SmsConsts.PROTOCOL));
-        msg.setHeader(Headers.SERVICE_CENTER, msgMap.get(SmsConsts.SERVICE_CENTER));
+        msg.setHeader(Headers.TYPE, Integer.toString(row.type));
+        msg.setHeader(Headers.DATE, Row.toString(row.date));
+        msg.setHeader(Headers.THREAD_ID, row.threadId);
+        msg.setHeader(Headers.READ, row.read);
+        msg.setHeader(Headers.STATUS, row.status);
+        msg.setHeader(Headers.PROTOCOL, row.protocol);
+        msg.setHeader(Headers.SERVICE_CENTER, row.serviceCenter);
         msg.setHeader(Headers.BACKUP_TIME, new Date().toGMTString());
         msg.setHeader(Headers.VERSION, PrefStore.getVersion(mContext, true));
         msg.setFlag(Flag.SEEN, mMarkAsRead);
@@ -375,14 +442,14 @@ public class CursorToMessage {
         return msg;
     }
 
-    private Message messageFromMapCallLog(Map<String, String> msgMap) throws MessagingException {
-        final String address = msgMap.get(CallLog.Calls.NUMBER);
-        final int callType = Integer.parseInt(msgMap.get(CallLog.Calls.TYPE));
+    private Message messageFromCallLog(CallLogRow row) throws MessagingException {
+        final String address = row.number;
+        final int callType = row.type;
 
         if (address == null || address.trim().length() == 0 ||
             !PrefStore.isCallLogTypeEnabled(mContext, callType)) {
 
-          if (LOCAL_LOGV) Log.v(TAG, "ignoring call log entry: " + msgMap);
+          if (LOCAL_LOGV) Log.v(TAG, "ignoring call log entry: " + row);
           return null;
         }
 
@@ -410,8 +477,7 @@ public class CursorToMessage {
             return null;
         }
 
-        final int duration = msgMap.get(CallLog.Calls.DURATION) == null ? 0 :
-                             Integer.parseInt(msgMap.get(CallLog.Calls.DURATION));
+        final int duration = row.duration;
         final StringBuilder text = new StringBuilder();
 
         if (callType != CallLog.Calls.MISSED_TYPE) {
@@ -425,24 +491,24 @@ public class CursorToMessage {
 
         msg.setBody(new TextBody(text.toString()));
 
-        try {
-          Date then = new Date(Long.valueOf(msgMap.get(CallLog.Calls.DATE)));
+        if (row.date != Row.MISSING) {
+          Date then = new Date(row.date);
           msg.setSentDate(then);
           msg.setInternalDate(then);
-          msg.setHeader("Message-ID", createMessageId(then, address, callType));
-        } catch (NumberFormatException n) {
-          Log.e(TAG, "error parsing date", n);
+          msg.setHeader("Message-ID", MessageIdGenerator.createMessageId(then.getTime(), address, callType));
+        } else {
+          Log.e(TAG, "call log entry without date");
         }
 
         // Threading by person ID, not by thread ID. I think this value is more stable.
         msg.setHeader("References",
                       String.format(Locale.ENGLISH, REFERENCE_UID_TEMPLATE, mReferenceValue, sanitize(record.getId())));
-        msg.setHeader(Headers.ID, msgMap.get(CallLog.Calls._ID));
+        msg.setHeader(Headers.ID, row.id);
         msg.setHeader(Headers.ADDRESS, sanitize(address));
         msg.setHeader(Headers.DATATYPE, DataType.CALLLOG.toString());
-        msg.setHeader(Headers.TYPE, msgMap.get(CallLog.Calls.TYPE));
-        msg.setHeader(Headers.DATE, msgMap.get(CallLog.Calls.DATE));
-        msg.setHeader(Headers.DURATION, msgMap.get(CallLog.Calls.DURATION));
+        msg.setHeader(Headers.TYPE, Integer.toString(callType));
+        msg.setHeader(Headers.DATE, Row.toString(row.date));
+        msg.setHeader(Headers.DURATION, Integer.toString(duration));
         msg.setHeader(Headers.BACKUP_TIME, new Date().toGMTString());
         msg.setHeader(Headers.VERSION, PrefStore.getVersion(mContext, true));
         msg.setFlag(Flag.SEEN, mMarkAsRead);
@@ -477,27 +543,24 @@ public class CursorToMessage {
        }
     }
 
-    private Message messageFromMapMms(Map<String, String> msgMap) throws MessagingException {
-        if (LOCAL_LOGV) Log.v(TAG, "messageFromMapMms(" + msgMap + ")");
+    private Message messageFromMms(MmsRow row) throws MessagingException {
+        if (LOCAL_LOGV) Log.v(TAG, "messageFromMms(" + row + ")");
 
-        final Uri msgRef  = Uri.withAppendedPath(ServiceBase.MMS_PROVIDER, msgMap.get(MmsConsts.ID));
-        Cursor curAddr = mContext.getContentResolver().query(Uri.withAppendedPath(msgRef, "addr"),
-                                                            null, null, null, null);
+        if (mMmsLoader.needsLoad(row.id)) {
+            // load this and the following messages of the cursor in one go
+            mMmsLoader.load(row.peek(MmsRow.ID, MmsLoader.WINDOW));
+        }
 
         // TODO: this is probably not the best way to determine if a message is inbound or outbound
         boolean inbound = true;
         final List<String> recipients = new ArrayList<String>(); // MMS recipients
-        while (curAddr != null && curAddr.moveToNext()) {
-           final String address = curAddr.getString(curAddr.getColumnIndex("address"));
-           //final int type       = curAddr.getInt(curAddr.getColumnIndex("type"));
-
+        for (String address : mMmsLoader.getAddresses(row.id)) {
            if (MmsConsts.INSERT_ADDRESS_TOKEN.equals(address)) {
              inbound = false;
            } else {
              recipients.add(address);
            }
         }
-        if (curAddr != null) curAddr.close();
         if (recipients.isEmpty()) {
            Log.w(TAG, "no recipients found");
            return null;
@@ -522,7 +585,7 @@ public class CursorToMessage {
 
         final Message msg = new MimeMessage();
         msg.setSubject(getSubject(DataType.MMS, records[0]));
-        final int msg_box = Integer.parseInt(msgMap.get("msg_box"));
+        final int msg_box = row.msgBox;
         if (inbound) {
             // msg_box == MmsConsts.MESSAGE_BOX_INBOX does not work
             msg.setFrom(records[0].getAddress());
@@ -532,48 +595,47 @@ public class CursorToMessage {
             msg.setFrom(mUserAddress);
         }
 
-        try {
-          Date then = new Date(1000 * Long.valueOf(msgMap.get(MmsConsts.DATE)));
+        if (row.date != Row.MISSING) {
+          Date then = new Date(1000 * row.date);
           msg.setSentDate(then);
           msg.setInternalDate(then);
-          msg.setHeader("Message-ID", createMessageId(then, address, msg_box));
-        } catch (NumberFormatException n) {
-          Log.e(TAG, "error parsing date", n);
+          msg.setHeader("Message-ID", MessageIdGenerator.createMessageId(then.getTime(), address, msg_box));
+        } else {
+          Log.e(TAG, "mms without date");
         }
 
         // Threading by person ID, not by thread ID. I think this value is more stable.
         msg.setHeader("References", String.format(Locale.ENGLISH, REFERENCE_UID_TEMPLATE, mReferenceValue,
                                                   sanitize(records[0].getId())));
-        msg.setHeader(Headers.ID, msgMap.get(MmsConsts.ID));
+        msg.setHeader(Headers.ID, row.id);
         msg.setHeader(Headers.ADDRESS, sanitize(address));
         msg.setHeader(Headers.DATATYPE, DataType.MMS.toString());
-        msg.setHeader(Headers.TYPE, msgMap.get(MmsConsts.TYPE));
-        msg.setHeader(Headers.DATE, msgMap.get(MmsConsts.DATE));
-        msg.setHeader(Headers.THREAD_ID, msgMap.get(MmsConsts.THREAD_ID));
-        msg.setHeader(Headers.READ, msgMap.get(MmsConsts.READ));
+        msg.setHeader(Headers.TYPE, row.type);
+        msg.setHeader(Headers.DATE, Row.toString(row.date));
+        msg.setHeader(Headers.THREAD_ID, row.threadId);
+        msg.setHeader(Headers.READ, row.read);
         msg.setHeader(Headers.BACKUP_TIME, new Date().toGMTString());
         msg.setHeader(Headers.VERSION, PrefStore.getVersion(mContext, true));
         msg.setFlag(Flag.SEEN, mMarkAsRead);
 
         // deal with attachments
         MimeMultipart body = new MimeMultipart();
-        for (BodyPart p : getBodyParts(Uri.withAppendedPath(msgRef, "part"))) {
+        for (BodyPart p : getBodyParts(mMmsLoader.getParts(row.id), msg.getMessageId())) {
           body.addBodyPart(p);
         }
         msg.setBody(body);
         return msg;
     }
 
-    private List<BodyPart> getBodyParts(final Uri uriPart) throws MessagingException {
+    private List<BodyPart> getBodyParts(final List<MmsLoader.Part> mmsParts, final String messageId)
+            throws MessagingException {
         final List<BodyPart> parts = new ArrayList<BodyPart>();
-        Cursor curPart = mContext.getContentResolver().query(uriPart, null, null, null, null);
 
-        // _id, mid, seq, ct, name, chset, cd, fn, cid, cl, ctt_s, ctt_t, _data, text
-        while (curPart != null && curPart.moveToNext()) {
-          final String id = curPart.getString(curPart.getColumnIndex("_id"));
-          final String contentType = curPart.getString(curPart.getColumnIndex("ct"));
-          final String fileName = curPart.getString(curPart.getColumnIndex("cl"));
-          final String text = curPart.getString(curPart.getColumnIndex("text"));
+        for (MmsLoader.Part mmsPart : mmsParts) {
+          final String id = mmsPart.id;
+          final String contentType = mmsPart.contentType;
+          final String fileName = mmsPart.fileName;
+          final String text = mmsPart.text;
 
           if (LOCAL_LOGV) Log.v(TAG, String.format(Locale.ENGLISH, "processing part %s, name=%s (%s)", id,
                                                    fileName, contentType));
@@ -586,47 +648,69 @@ public class CursorToMessage {
           } else {
             // attach everything else
             final Uri partUri = Uri.withAppendedPath(ServiceBase.MMS_PROVIDER, "part/" + id);
-            BodyPart part = new MimeBodyPart(new MmsAttachmentBody(partUri, mContext), contentType);
-            part.setHeader(MimeHeader.HEADER_CONTENT_TYPE,
-                  String.format(Locale.ENGLISH, "%s;\n name=\"%s\"", contentType, fileName != null ? fileName : "attachment"));
+            final String partContentType = String.format(Locale.ENGLISH, "%s;\n name=\"%s\"", contentType,
+                                                         fileName != null ? fileName : "attachment");
+
+            final boolean dedup = mAttachmentIndex != null && messageId != null;
+
+            // scaled / hashed here on the converter thread, while the previous batch gets uploaded
+            final byte[] scaled = mImageScaler != null && ImageScaler.isScalable(contentType) ?
+                                  mImageScaler.scale(partUri) : null;
+            final Body partBody;
+            final String sha1;
+            if (scaled != null) {
+              partBody = new Base64Body(scaled);
+              sha1 = dedup ? AttachmentIndex.hash(scaled) : null;
+            } else {
+              final MmsAttachmentBody body = new MmsAttachmentBody(partUri, mContext);
+              // the hash is needed before deciding what to upload, so encode the attachment now
+              sha1 = dedup ? body.spool() : null;
+              partBody = body;
+            }
+
+            final String firstMessageId = sha1 != null ?
+                                mAttachmentIndex.getFirstMessageId(sha1, messageId) : null;
+            if (firstMessageId != null) {
+              if (LOCAL_LOGV) Log.v(TAG, "attachment " + sha1 + " already uploaded with " + firstMessageId);
+              if (partBody instanceof MmsAttachmentBody) ((MmsAttachmentBody) partBody).release();
+              parts.add(createAttachmentReference(partContentType, sha1, firstMessageId));
+              continue;
+            }
+
+            BodyPart part = new MimeBodyPart(partBody, contentType);
+            part.setHeader(MimeHeader.HEADER_CONTENT_TYPE, partContentType);
             part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "base64");
             part.setHeader(MimeHeader.HEADER_CONTENT_DISPOSITION,       "attachment");
+            if (sha1 != null) part.setHeader(Headers.ATTACHMENT_SHA1, sha1);
 
             parts.add(part);
           }
         }
-
-        if (curPart != null) curPart.close();
         return parts;
     }
 
     /**
-      * Create a message-id based on message date, phone number and message
-      * type.
-     * @param sent email send date
-     * @param address the email address
-     * @param type the type
-     * @return the message-id
+     * Creates a message/external-body part (RFC 2046) standing in for an attachment which
+     * is contained in another backed up message. The body holds the headers of the
+     * original part, the attachment is identified by Message-ID and SHA-1.
      */
-    private String createMessageId(Date sent, String address, int type) {
-      try {
-        final MessageDigest digest = java.security.MessageDigest.getInstance("MD5");
-
-        digest.update(Long.toString(sent.getTime()).getBytes("UTF-8"));
-        digest.update(address.getBytes("UTF-8"));
-        digest.update(Integer.toString(type).getBytes("UTF-8"));
-
-        final StringBuilder sb = new StringBuilder();
-        for (byte b : digest.digest()) {
-          sb.append(String.format(Locale.ENGLISH, "%02x", b));
-        }
-        return String.format(Locale.ENGLISH, MSG_ID_TEMPLATE, sb.toString());
-      } catch (java.io.UnsupportedEncodingException e) {
-        throw new RuntimeException(e);
-      } catch (java.security.NoSuchAlgorithmException e) {
-        throw new RuntimeException(e);
-      }
+    private static BodyPart createAttachmentReference(String contentType, String sha1, String messageId)
+            throws MessagingException {
+        final TextBody body = new TextBody(String.format(Locale.ENGLISH,
+              "%s: %s\r\n%s: base64\r\n\r\n",
+              MimeHeader.HEADER_CONTENT_TYPE, contentType.replace("\n", "\r\n"),
+              MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING));
+        body.setEncoding("8bit");
+
+        final BodyPart part = new MimeBodyPart(body, "message/external-body");
+        part.setHeader(MimeHeader.HEADER_CONTENT_TYPE, String.format(Locale.ENGLISH,
+              "message/external-body;\n access-type=\"x-smssync-attachment\";\n message-id=\"%s\";\n sha1=\"%s\"",
+              messageId, sha1));
+        part.setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, "7bit");
+        part.setHeader(Headers.ATTACHMENT_SHA1, sha1);
+        return part;
     }
+
     private static String getHeader(Message msg, String header) {
         try {
             String[] hdrs = msg.getHeader(header);
@@ -640,9 +724,9 @@ public class CursorToMessage {
 
 
     @TargetApi(Build.VERSION_CODES.ECLAIR)
-    private String getPrimaryEmail(final long personId, final String number) {
+    private String getPrimaryEmail(final long personId) {
         if (personId <= 0) {
-          return getUnknownEmail(number);
+          return null;
         }
         String primaryEmail = null;
 
@@ -679,7 +763,7 @@ public class CursorToMessage {
         }
 
         if (c != null) c.close();
-        return (primaryEmail != null) ? primaryEmail : getUnknownEmail(number);
+        return primaryEmail;
     }
 
     private static String sanitize(String s) {
@@ -696,7 +780,7 @@ public class CursorToMessage {
     }
 
     // Returns whether the given e-mail address is a Gmail address or not.
-    private static boolean isGmailAddress(String email) {
+    static boolean isGmailAddress(String email) {
         return email != null &&
                 (email.toLowerCase(Locale.ENGLISH).endsWith("gmail.com") ||
                  email.toLowerCase(Locale.ENGLISH).endsWith("googlemail.com"));
@@ -711,9 +795,177 @@ public class CursorToMessage {
       return sb.toString();
     }
 
+    /**
+     * A row of one of the backup cursors. Column indices are only looked up when the
+     * cursor changes, values are read with the typed cursor getters. Columns missing
+     * from the cursor read as null / default.
+     */
+    private abstract static class Row {
+        static final long MISSING = Long.MIN_VALUE;
+
+        private final String[] columns;
+        private final int[] indices;
+        private Cursor cursor;
+
+        Row(String... columns) {
+            this.columns = columns;
+            this.indices = new int[columns.length];
+        }
+
+        final void read(Cursor c) {
+            if (c != cursor) {
+                cursor = c;
+                for (int i = 0; i < columns.length; i++) {
+                    indices[i] = c.getColumnIndex(columns[i]);
+                }
+            }
+            read();
+        }
+
+        abstract void read();
+
+        abstract long getDate();
+
+        String getString(int column) {
+            final int index = indices[column];
+            return index == -1 ? null : cursor.getString(index);
+        }
+
+        long getLong(int column) {
+            final int index = indices[column];
+            return index == -1 || cursor.isNull(index) ? MISSING : cursor.getLong(index);
+        }
+
+        /**
+         * @return the values of a column for the current and up to max - 1 following rows,
+         *         the cursor position is not changed
+         */
+        List<String> peek(int column, int max) {
+            final List<String> values = new ArrayList<String>(max);
+            final int index = indices[column];
+            if (index == -1) return values;
+
+            final int position = cursor.getPosition();
+            do {
+                values.add(cursor.getString(index));
+            } while (values.size() < max && cursor.moveToNext());
+            cursor.moveToPosition(position);
+            return values;
+        }
+
+        int getInt(int column, int defValue) {
+            final int index = indices[column];
+            return index == -1 || cursor.isNull(index) ? defValue : cursor.getInt(index);
+        }
+
+        static String toString(long value) {
+            return value == MISSING ? null : Long.toString(value);
+        }
+    }
+
+    private static class SmsRow extends Row {
+        static final int ID = 0, ADDRESS = 1, BODY = 2, TYPE = 3, DATE = 4, THREAD_ID = 5,
+                         READ = 6, STATUS = 7, PROTOCOL = 8, SERVICE_CENTER = 9;
+
+        String id, address, body, threadId, read, status, protocol, serviceCenter;
+        int type;
+        long date;
+
+        SmsRow() {
+            super(SMS_PROJECTION);
+        }
+
+        @Override void read() {
+            id            = getString(ID);
+            address       = getString(ADDRESS);
+            body          = getString(BODY);
+            type          = getInt(TYPE, -1);
+            date          = getLong(DATE);
+            threadId      = getString(THREAD_ID);
+            read          = getString(READ);
+            status        = getString(STATUS);
+            protocol      = getString(PROTOCOL);
+            serviceCenter = getString(SERVICE_CENTER);
+        }
+
+        @Override long getDate() { return date; }
+    }
+
+    private static class MmsRow extends Row {
+        static final int ID = 0, TYPE = 1, DATE = 2, THREAD_ID = 3, READ = 4, MSG_BOX = 5;
+
+        String id, type, threadId, read;
+        long date;
+        int msgBox;
+
+        MmsRow() {
+            super(MMS_PROJECTION);
+        }
+
+        @Override void read() {
+            id       = getString(ID);
+            type     = getString(TYPE);
+            date     = getLong(DATE);
+            threadId = getString(THREAD_ID);
+            read     = getString(READ);
+            msgBox   = getInt(MSG_BOX, 0);
+        }
+
+        /** in seconds */
+        @Override long getDate() { return date; }
+
+        @Override public String toString() {
+            return "MmsRow{id=" + id + ", date=" + date + ", msg_box=" + msgBox + "}";
+        }
+    }
+
+    private static class CallLogRow extends Row {
+        static final int ID = 0, NUMBER = 1, TYPE = 2, DATE = 3, DURATION = 4;
+
+        String id, number;
+        int type, duration;
+        long date;
+
+        CallLogRow() {
+            super(CallLog.Calls._ID, CallLog.Calls.NUMBER, CallLog.Calls.TYPE, CallLog.Calls.DATE,
+                  CallLog.Calls.DURATION);
+        }
+
+        @Override void read() {
+            id       = getString(ID);
+            number   = getString(NUMBER);
+            type     = getInt(TYPE, -1);
+            date     = getLong(DATE);
+            duration = getInt(DURATION, 0);
+        }
+
+        @Override long getDate() { return date; }
+
+        /**
+         * @return the fields needed by the calendar sync
+         */
+        Map<String, String> toMap() {
+            final Map<String, String> map = new HashMap<String, String>(4);
+            map.put(CallLog.Calls.NUMBER, number);
+            map.put(CallLog.Calls.TYPE, Integer.toString(type));
+            map.put(CallLog.Calls.DATE, toString(date));
+            map.put(CallLog.Calls.DURATION, Integer.toString(duration));
+            return map;
+        }
+
+        @Override public String toString() {
+            return "CallLogRow{number=" + number + ", type=" + type + ", date=" + date + "}";
+        }
+    }
+
+    public void setAttachmentIndex(AttachmentIndex index) {
+        mAttachmentIndex = index;
+    }
+
     public static class ConversionResult {
         public final DataType type;
         public final List<Message> messageList = new ArrayList<Message>();
+        /** call log fields for the calendar sync, only filled if it is enabled */
         public final List<Map<String,String>> mapList = new ArrayList<Map<String,String>>();
         public long maxDate = PrefStore.DEFAULT_MAX_SYNCED_DATE;
 
@@ -764,10 +1016,46 @@ public class CursorToMessage {
         }
     }
 
+    /**
+     * An attachment held in memory, base64 encoded.
+     */
+    public static class Base64Body implements Body {
+        private final byte[] mData;
+
+        public Base64Body(byte[] data) {
+            mData = data;
+        }
+
+        public InputStream getInputStream() throws MessagingException {
+            return new ByteArrayInputStream(mData);
+        }
+
+        public void writeTo(OutputStream out) throws IOException, MessagingException {
+            Base64OutputStream base64Out = new Base64OutputStream(out);
+            base64Out.write(mData);
+            base64Out.close();
+        }
+    }
+
+    /**
+     * An MMS attachment, base64 encoded. The IMAP APPEND needs the size of the message
+     * up front, so it gets written several times: to count the bytes, to send them (and
+     * possibly to try a MULTIAPPEND first). The first pass reads and encodes the attachment
+     * and keeps the encoded bytes (in memory, or in a cache file if large), later passes
+     * only copy them. The encoded bytes are kept until {@link #release(Message)} is called
+     * once the message has been appended.
+     */
     public static class MmsAttachmentBody implements Body
     {
+        private static final int MAX_MEMORY_SPOOL = 256 * 1024;
+        /** attachments spooled during conversion wait for their upload, keep less in memory */
+        private static final int MAX_MEMORY_SPOOL_AHEAD = 32 * 1024;
+        private static final int BUFFER_SIZE = 8192;
+        private static final String SPOOL_PREFIX = "mms-";
+
         private Context mContext;
         private Uri mUri;
+        private DeferredFileOutputStream mSpool;
 
         public MmsAttachmentBody(Uri uri, Context context) {
             mContext = context;
@@ -790,10 +1078,108 @@ public class CursorToMessage {
         }
 
         public void writeTo(OutputStream out) throws IOException, MessagingException {
-            InputStream in = getInputStream();
-            Base64OutputStream base64Out = new Base64OutputStream(out);
-            IOUtils.copy(in, base64Out);
-            base64Out.close();
+            if (mSpool != null) {
+                mSpool.writeTo(out);
+                return;
+            }
+            final DeferredFileOutputStream spool = createSpool(MAX_MEMORY_SPOOL);
+            try {
+                encode(new TeeOutputStream(out, spool), null);
+            } finally {
+                spool.close();
+            }
+            mSpool = spool;
+        }
+
+        /**
+         * Encodes the attachment ahead of the upload, computing its SHA-1 in the same pass.
+         *
+         * @return the SHA-1 of the attachment as hex string, or null if it couldn't be read
+         */
+        public String spool() {
+            final DeferredFileOutputStream spool = createSpool(MAX_MEMORY_SPOOL_AHEAD);
+            final MessageDigest digest = AttachmentIndex.createDigest();
+            try {
+                try {
+                    encode(spool, digest);
+                } finally {
+                    spool.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "error reading " + mUri, e);
+                if (!spool.isInMemory()) spool.getFile().delete();
+                return null;
+            } catch (MessagingException e) {
+                Log.w(TAG, "error reading " + mUri, e);
+                if (!spool.isInMemory()) spool.getFile().delete();
+                return null;
+            }
+            mSpool = spool;
+            return AttachmentIndex.toHex(digest.digest());
+        }
+
+        private DeferredFileOutputStream createSpool(int threshold) {
+            return new DeferredFileOutputStream(threshold,
+                    new File(mContext.getCacheDir(), SPOOL_PREFIX + mUri.getLastPathSegment()));
+        }
+
+        /**
+         * @param digest gets updated with the raw bytes of the attachment, or null
+         */
+        private void encode(OutputStream out, MessageDigest digest) throws IOException, MessagingException {
+            final InputStream in = getInputStream();
+            try {
+                Base64OutputStream base64Out = new Base64OutputStream(out);
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    if (digest != null) digest.update(buffer, 0, n);
+                    base64Out.write(buffer, 0, n);
+                }
+                base64Out.close();
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Drops the encoded bytes, the next write reads the attachment again.
+         */
+        public void release() {
+            final DeferredFileOutputStream spool = mSpool;
+            mSpool = null;
+            if (spool != null && !spool.isInMemory() && !spool.getFile().delete()) {
+                Log.w(TAG, "could not delete " + spool.getFile());
+            }
+        }
+
+        /**
+         * Releases the encoded attachments of a message.
+         */
+        public static void release(Message message) {
+            release(message.getBody());
+        }
+
+        private static void release(Body body) {
+            if (body instanceof MmsAttachmentBody) {
+                ((MmsAttachmentBody) body).release();
+            } else if (body instanceof Multipart) {
+                final Multipart multipart = (Multipart) body;
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    release(multipart.getBodyPart(i).getBody());
+                }
+            }
+        }
+
+        /**
+         * Removes encoded attachments left over from failed uploads.
+         */
+        public static void clearSpool(Context context) {
+            final File[] files = context.getCacheDir().listFiles();
+            if (files == null) return;
+            for (File file : files) {
+                if (file.getName().startsWith(SPOOL_PREFIX)) file.delete();
+            }
         }
     }
 }
@@ -0,0 +1,40 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+
+/**
+ * Hashes of the date, type and address headers of the messages in a backup folder,
+ * used by the {@link Deduplicator} to recognize copies of already seen messages.
+ */
+public class DedupIndex extends FolderIndex {
+    private static final String PREFIX = "dedup-";
+
+    private DedupIndex(Context context, String name) {
+        super(context, PREFIX, name);
+    }
+
+    /**
+     * @param context the context
+     * @param name a name identifying the folder
+     * @return the stored index, or an empty one if there is none
+     */
+    public static DedupIndex load(Context context, String name) {
+        final DedupIndex index = new DedupIndex(context, name);
+        index.load();
+        return index;
+    }
+
+    /**
+     * Deletes the indexes of all folders.
+     */
+    public static void deleteAll(Context context) {
+        deleteAll(context, PREFIX);
+    }
+
+    /**
+     * @return false if a message with these headers has been seen already
+     */
+    public boolean add(String date, String type, String address) {
+        return addHash(DuplicateIndex.hashValues(date, type, address));
+    }
+}
@@ -0,0 +1,89 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+
+import java.util.Arrays;
+
+import static com.zegoggles.smssync.App.*;
+import static com.zegoggles.smssync.CursorToMessage.Headers;
+
+/**
+ * Removes duplicate backups from a folder, like contrib/dedup.py does.
+ * <p/>
+ * Messages are identified by their date, type and address headers (the same fields
+ * the Message-ID is computed from), the copy with the lowest UID is kept. The hashes of
+ * all seen messages are kept in a {@link DedupIndex}, so later runs only need to look
+ * at messages added since the last run.
+ */
+public class Deduplicator {
+    private static final String HEADER_FIELDS =
+            Headers.DATE + " " + Headers.TYPE + " " + Headers.ADDRESS;
+
+    private final Context context;
+
+    public Deduplicator(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * @param folder an open, writable folder
+     * @param messageIds the Message-ID index of the folder, gets told about deleted messages
+     * @return the number of duplicates deleted (or only flagged as deleted)
+     */
+    public int dedup(BackupImapStore.BackupFolder folder, MessageIdIndex messageIds) throws MessagingException {
+        final DedupIndex seen = DedupIndex.load(context, folder.getStateKey());
+        final Duplicates duplicates = new Duplicates();
+
+        folder.scanHeaders(seen, HEADER_FIELDS, new BackupImapStore.HeaderHandler() {
+            public void onHeaders(long uid, String headers) {
+                final String date = BackupImapStore.parseHeader(headers, Headers.DATE);
+                final String type = BackupImapStore.parseHeader(headers, Headers.TYPE);
+                final String address = BackupImapStore.parseHeader(headers, Headers.ADDRESS);
+                // not a backed up item
+                if (date == null || type == null) return;
+
+                if (!seen.add(date, type, address)) {
+                    if (LOCAL_LOGV) Log.v(TAG, "duplicate: " + uid);
+                    duplicates.add(uid);
+                }
+            }
+
+            public void reset() {
+                // seen has been cleared as well, the rescan finds all duplicates again
+                duplicates.count = 0;
+            }
+        });
+
+        // fetch responses are not necessarily in UID order
+        Arrays.sort(duplicates.uids, 0, duplicates.count);
+        // without UIDPLUS the duplicates stay in the folder, flagged as deleted
+        if (folder.deleteMessages(duplicates.uids, duplicates.count)) {
+            seen.expunged(duplicates.uids, duplicates.count);
+            if (messageIds != null) messageIds.expunged(duplicates.uids, duplicates.count);
+        }
+        // only remember the scan once the duplicates are gone
+        seen.save();
+
+        if (duplicates.count > 0) {
+            Log.i(TAG, "deleted " + duplicates.count + " duplicate(s) in " + folder.getName());
+        }
+        return duplicates.count;
+    }
+
+    /** UIDs of found duplicates */
+    private static class Duplicates {
+        long[] uids = new long[16];
+        int count;
+
+        void add(long uid) {
+            if (count == uids.length) {
+                final long[] grown = new long[count * 2];
+                System.arraycopy(uids, 0, grown, 0, count);
+                uids = grown;
+            }
+            uids[count++] = uid;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.zegoggles.smssync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Keeps 64 bit hashes of the identifying columns of all items in a provider, so that
+ * restore can check for duplicates without querying the provider for every item.
+ */
+public class DuplicateIndex {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String[] keyColumns;
+    private final LongHashSet hashes;
+
+    private DuplicateIndex(String[] keyColumns, int expectedSize) {
+        this.keyColumns = keyColumns;
+        this.hashes = new LongHashSet(expectedSize);
+    }
+
+    /**
+     * Reads the key columns of all existing items.
+     *
+     * @param resolver the resolver
+     * @param uri the provider
+     * @param keyColumns columns which identify an item
+     * @return the index
+     */
+    public static DuplicateIndex load(ContentResolver resolver, Uri uri, String... keyColumns) {
+        final Cursor c = resolver.query(uri, keyColumns, null, null, null);
+        final DuplicateIndex index = new DuplicateIndex(keyColumns, c == null ? 0 : c.getCount());
+        if (c != null) {
+            try {
+                final String[] values = new String[keyColumns.length];
+                while (c.moveToNext()) {
+                    for (int i = 0; i < keyColumns.length; i++) {
+                        values[i] = c.getString(i);
+                    }
+                    index.hashes.add(hashValues(values));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "loaded " + index.hashes.size() + " keys from " + uri);
+        return index;
+    }
+
+    public boolean contains(ContentValues values) {
+        return hashes.contains(hash(values));
+    }
+
+    /**
+     * Adds an item which is about to be inserted.
+     */
+    public void add(ContentValues values) {
+        hashes.add(hash(values));
+    }
+
+    private long hash(ContentValues values) {
+        final String[] strings = new String[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            strings[i] = values.getAsString(keyColumns[i]);
+        }
+        return hashValues(strings);
+    }
+
+    /**
+     * FNV-1a over all values. Nulls and separators are hashed as values outside
+     * the char range so they can't collide with any string.
+     */
+    static long hashValues(String... values) {
+        long h = FNV_OFFSET_BASIS;
+        for (String value : values) {
+            if (value == null) {
+                h = (h ^ 0x10000) * FNV_PRIME;
+            } else {
+                for (int i = 0; i < value.length(); i++) {
+                    h = (h ^ value.charAt(i)) * FNV_PRIME;
+                }
+            }
+            h = (h ^ 0x10001) * FNV_PRIME;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,191 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * 64 bit hashes of header fields of the messages in a folder, built by
+ * {@link BackupImapStore.BackupFolder#scanHeaders}.
+ * <p/>
+ * The index is kept in a file between runs, together with the UIDVALIDITY of the folder,
+ * the highest UID scanned so far and the number of scanned messages, so only the headers of
+ * new messages need to be fetched. The number of scanned messages is compared with the
+ * number of messages in the folder to notice deleted messages, which can't be removed
+ * from the index.
+ */
+public abstract class FolderIndex {
+    private static final int VERSION = 2;
+
+    private final File file;
+    private long uidValidity = -1;
+    private long lastUid;
+    private int count;
+    private LongHashSet hashes = new LongHashSet();
+
+    /**
+     * @param context the context
+     * @param prefix file name prefix of this kind of index
+     * @param name a name identifying the folder
+     */
+    protected FolderIndex(Context context, String prefix, String name) {
+        file = new File(context.getFilesDir(), prefix + Long.toHexString(DuplicateIndex.hashValues(name)));
+    }
+
+    /**
+     * Deletes all stored indexes of a kind.
+     */
+    protected static void deleteAll(Context context, final String prefix) {
+        final File[] files = context.getFilesDir().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+        if (files == null) return;
+        for (File f : files) {
+            if (!f.delete()) Log.w(TAG, "error deleting " + f);
+        }
+    }
+
+    protected boolean containsHash(long hash) {
+        return hashes.contains(hash);
+    }
+
+    /**
+     * @return false if the hash was already in the index
+     */
+    protected boolean addHash(long hash) {
+        return hashes.add(hash);
+    }
+
+    public int size() {
+        return hashes.size();
+    }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    /**
+     * @return the highest scanned UID
+     */
+    public long getLastUid() {
+        return lastUid;
+    }
+
+    /**
+     * @return the number of scanned messages which are still in the folder
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Records scanned messages.
+     *
+     * @param lastUid the highest UID scanned
+     * @param scanned the number of scanned messages
+     */
+    public void scanned(long lastUid, int scanned) {
+        if (lastUid > this.lastUid) this.lastUid = lastUid;
+        count += scanned;
+    }
+
+    /**
+     * Records messages removed from the folder, their hashes stay in the index.
+     *
+     * @param uids the UIDs of the removed messages
+     * @param n the number of UIDs to use from the array
+     */
+    public void expunged(long[] uids, int n) {
+        for (int i = 0; i < n; i++) {
+            if (uids[i] <= lastUid) count--;
+        }
+    }
+
+    /**
+     * Empties the index, e.g. because the folder has been recreated.
+     */
+    public void reset(long uidValidity) {
+        this.uidValidity = uidValidity;
+        this.lastUid = 0;
+        this.count = 0;
+        this.hashes = new LongHashSet();
+    }
+
+    /**
+     * Writes the index to a temporary file first, an interrupted save leaves the previous
+     * index intact.
+     */
+    public void save() {
+        final File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            final long[] values = hashes.toArray();
+            out.writeInt(VERSION);
+            out.writeLong(uidValidity);
+            out.writeLong(lastUid);
+            out.writeInt(count);
+            out.writeInt(values.length);
+            for (long value : values) {
+                out.writeLong(value);
+            }
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file)) throw new IOException("could not rename " + tmp);
+            if (LOCAL_LOGV) Log.v(TAG, "saved " + values.length + " hashes to " + file);
+        } catch (IOException e) {
+            Log.w(TAG, "error writing " + file, e);
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (IOException ignored) { }
+            }
+            if (tmp.exists() && !tmp.delete()) Log.w(TAG, "error deleting " + tmp);
+        }
+    }
+
+    /**
+     * Reads the stored index, if there is one.
+     */
+    protected void load() {
+        try {
+            read();
+        } catch (FileNotFoundException ignored) {
+        } catch (IOException e) {
+            Log.w(TAG, "error reading " + file, e);
+            reset(-1);
+        }
+    }
+
+    private void read() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != VERSION) throw new IOException("unknown version");
+
+            uidValidity = in.readLong();
+            lastUid = in.readLong();
+            count = in.readInt();
+            final int n = in.readInt();
+            hashes = new LongHashSet(n);
+            for (int i = 0; i < n; i++) {
+                hashes.add(in.readLong());
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Downscales JPEG attachments before they get uploaded. Images are decoded with
+ * {@link BitmapFactory.Options#inSampleSize} to the smallest power of two fraction which is
+ * still at least the max dimension, so the full resolution image is never held in memory,
+ * and then scaled down the rest of the way.
+ * <p/>
+ * The recompressed JPEG has no EXIF data, so the EXIF orientation gets applied to the pixels.
+ * It is read straight from the JPEG header, {@link android.media.ExifInterface} needs API
+ * level 5 and a file.
+ */
+public class ImageScaler {
+    static final int JPEG_QUALITY = 85;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int MARKER_SOI = 0xFFD8, MARKER_APP1 = 0xFFE1, MARKER_SOS = 0xFFDA;
+
+    private final Context context;
+    private final int maxDimension;
+
+    /**
+     * @param context the context
+     * @param maxDimension the max width / height of scaled images in pixels
+     */
+    public ImageScaler(Context context, int maxDimension) {
+        this.context = context;
+        this.maxDimension = maxDimension;
+    }
+
+    public static boolean isScalable(String contentType) {
+        return "image/jpeg".equalsIgnoreCase(contentType) || "image/jpg".equalsIgnoreCase(contentType);
+    }
+
+    /**
+     * @param uri the image
+     * @return the scaled JPEG, or null if the image is small enough or couldn't be scaled
+     */
+    public byte[] scale(Uri uri) {
+        try {
+            final BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            decode(uri, bounds);
+            final int size = Math.max(bounds.outWidth, bounds.outHeight);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0 || size <= maxDimension) return null;
+
+            int sampleSize = 1;
+            while (size / (sampleSize * 2) >= maxDimension) {
+                sampleSize *= 2;
+            }
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            final Bitmap decoded = decode(uri, options);
+            if (decoded == null) return null;
+
+            Bitmap bitmap = decoded;
+            try {
+                final Matrix matrix = getOrientationMatrix(readOrientation(uri));
+                final float scale = (float) maxDimension / Math.max(decoded.getWidth(), decoded.getHeight());
+                if (scale < 1f) matrix.postScale(scale, scale);
+                if (!matrix.isIdentity()) {
+                    bitmap = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+                }
+
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) return null;
+
+                if (LOCAL_LOGV) Log.v(TAG, String.format(Locale.ENGLISH, "scaled %s from %dx%d to %dx%d (%d bytes)",
+                        uri, bounds.outWidth, bounds.outHeight, bitmap.getWidth(), bitmap.getHeight(), out.size()));
+                return out.toByteArray();
+            } finally {
+                if (bitmap != decoded) bitmap.recycle();
+                decoded.recycle();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "error scaling " + uri, e);
+            return null;
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "not enough memory to scale " + uri);
+            return null;
+        }
+    }
+
+    /**
+     * @return the EXIF orientation of the image (1-8), 1 if it has none
+     */
+    private int readOrientation(Uri uri) throws IOException {
+        final InputStream in = context.getContentResolver().openInputStream(uri);
+        try {
+            return readOrientation(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Looks for the orientation tag in the first IFD of the EXIF APP1 segment, only the
+     * segments before the image data are read.
+     */
+    static int readOrientation(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        try {
+            if (data.readUnsignedShort() != MARKER_SOI) return 1;
+            while (true) {
+                final int marker = data.readUnsignedShort();
+                if ((marker & 0xFF00) != 0xFF00 || marker == MARKER_SOS) return 1;
+
+                final int length = data.readUnsignedShort() - 2;
+                if (length < 0) return 1;
+                if (marker == MARKER_APP1) {
+                    final byte[] segment = new byte[length];
+                    data.readFully(segment);
+                    final int orientation = parseOrientation(segment);
+                    // might also be XMP
+                    if (orientation != -1) return orientation;
+                } else {
+                    int skipped = 0;
+                    while (skipped < length) {
+                        final int n = data.skipBytes(length - skipped);
+                        if (n <= 0) return 1;
+                        skipped += n;
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * @return the orientation, 1 if there is none, or -1 if this is not an EXIF segment
+     */
+    static int parseOrientation(byte[] segment) {
+        // "Exif\0\0", followed by a TIFF header
+        if (segment.length < 14 || segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i' ||
+            segment[3] != 'f' || segment[4] != 0 || segment[5] != 0) {
+            return -1;
+        }
+        final int tiff = 6;
+        final boolean littleEndian = segment[tiff] == 'I' && segment[tiff + 1] == 'I';
+        final long ifd = tiff + readInt(segment, tiff + 4, littleEndian);
+        if (ifd + 2 > segment.length) return 1;
+
+        final int entries = readShort(segment, (int) ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            final int entry = (int) ifd + 2 + i * 12;
+            if (entry + 12 > segment.length) break;
+            if (readShort(segment, entry, littleEndian) == TAG_ORIENTATION) {
+                final int orientation = readShort(segment, entry + 8, littleEndian);
+                return orientation >= 1 && orientation <= 8 ? orientation : 1;
+            }
+        }
+        return 1;
+    }
+
+    private static int readShort(byte[] b, int offset, boolean littleEndian) {
+        final int b0 = b[offset] & 0xFF, b1 = b[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long readInt(byte[] b, int offset, boolean littleEndian) {
+        final long hi = readShort(b, littleEndian ? offset + 2 : offset, littleEndian);
+        final long lo = readShort(b, littleEndian ? offset : offset + 2, littleEndian);
+        return (hi << 16) | lo;
+    }
+
+    /**
+     * @return a matrix turning an image with the EXIF orientation upright
+     */
+    static Matrix getOrientationMatrix(int orientation) {
+        final Matrix matrix = new Matrix();
+        switch (orientation) {
+            case 2: matrix.setScale(-1, 1); break;
+            case 3: matrix.setRotate(180); break;
+            case 4: matrix.setScale(1, -1); break;
+            case 5: matrix.setRotate(90); matrix.postScale(-1, 1); break;
+            case 6: matrix.setRotate(90); break;
+            case 7: matrix.setRotate(-90); matrix.postScale(-1, 1); break;
+            case 8: matrix.setRotate(-90); break;
+            default:
+        }
+        return matrix;
+    }
+
+    private Bitmap decode(Uri uri, BitmapFactory.Options options) throws IOException {
+        final InputStream in = context.getContentResolver().openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
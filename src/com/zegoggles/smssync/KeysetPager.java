@@ -0,0 +1,159 @@
+package com.zegoggles.smssync;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.Locale;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Iterates over the items of a provider in date order, one page at a time. Each page
+ * is a new query continuing after the (date, _id) of the last item of the previous
+ * page, so only one small cursor is open at a time, also for a first backup of a
+ * huge table.
+ * <p/>
+ * Some vendor providers lack one of the standard columns and fail the query. In that
+ * case all columns get queried instead.
+ */
+public class KeysetPager {
+    static final int PAGE_SIZE = 200;
+
+    private static final String ID = "_id";
+    private static final String DATE = "date";
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final String selection;
+    private final String[] selectionArgs;
+    private final int maxItems;
+    private String[] projection;
+
+    private Cursor cursor;
+    private int dateIndex, idIndex;
+    private long lastDate;
+    private long lastId = -1;
+    private int totalItems;
+    private boolean lastPage;
+
+    /**
+     * @param resolver the resolver
+     * @param uri the provider
+     * @param projection the columns to query, needs to contain date and _id
+     * @param selection additional selection, may be null
+     * @param selectionArgs arguments of the selection
+     * @param afterDate only return items with a date greater than this
+     * @param maxItems the max number of items to return, or a value &lt;= 0 for all
+     */
+    public KeysetPager(ContentResolver resolver, Uri uri, String[] projection,
+                       String selection, String[] selectionArgs,
+                       long afterDate, int maxItems) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.projection = projection;
+        this.selection = selection;
+        this.selectionArgs = selectionArgs == null ? new String[0] : selectionArgs;
+        this.lastDate = afterDate;
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * @return the number of items which will be returned
+     */
+    public int getCount() {
+        final Cursor c = query(new String[] { ID }, maxItems);
+        if (c == null) return 0;
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Moves to the next item, querying the next page if needed.
+     *
+     * @return false if there are no more items
+     */
+    public boolean moveToNext() {
+        if (maxItems > 0 && totalItems >= maxItems) return false;
+
+        if (cursor != null && cursor.moveToNext()) {
+            return advanced();
+        }
+        if (cursor != null && lastPage) return false;
+
+        close();
+        final int limit = maxItems > 0 ? Math.min(PAGE_SIZE, maxItems - totalItems) : PAGE_SIZE;
+        cursor = queryPage(limit);
+        if (cursor == null) return false;
+
+        lastPage = cursor.getCount() < limit;
+        dateIndex = cursor.getColumnIndex(DATE);
+        idIndex = cursor.getColumnIndex(ID);
+        return cursor.moveToNext() && advanced();
+    }
+
+    /**
+     * @return the cursor positioned on the current item
+     */
+    public Cursor getCursor() {
+        return cursor;
+    }
+
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+    private boolean advanced() {
+        lastDate = cursor.getLong(dateIndex);
+        lastId = cursor.getLong(idIndex);
+        totalItems++;
+        return true;
+    }
+
+    private Cursor queryPage(int limit) {
+        if (LOCAL_LOGV) Log.v(TAG, String.format(Locale.ENGLISH,
+                "querying %s after date=%d, id=%d (%d items so far)", uri, lastDate, lastId, totalItems));
+        try {
+            return query(projection, limit);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error querying " + uri + ", retrying with all columns", e);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "error querying " + uri + ", retrying with all columns", e);
+        }
+        projection = null;
+        return query(null, limit);
+    }
+
+    private Cursor query(String[] columns, int limit) {
+        final String keyset;
+        final String[] keysetArgs;
+        if (lastId == -1) {
+            keyset = DATE + " > ?";
+            keysetArgs = new String[] { String.valueOf(lastDate) };
+        } else {
+            // items with the same date as the last one are continued by _id
+            keyset = String.format(Locale.ENGLISH, "(%s > ? OR (%s = ? AND %s > ?))", DATE, DATE, ID);
+            keysetArgs = new String[] { String.valueOf(lastDate), String.valueOf(lastDate),
+                                        String.valueOf(lastId) };
+        }
+
+        final String[] args = new String[keysetArgs.length + selectionArgs.length];
+        System.arraycopy(keysetArgs, 0, args, 0, keysetArgs.length);
+        System.arraycopy(selectionArgs, 0, args, keysetArgs.length, selectionArgs.length);
+
+        String sortOrder = DATE + ", " + ID;
+        if (limit > 0) sortOrder += " LIMIT " + limit;
+
+        return resolver.query(uri, columns,
+                selection == null ? keyset : keyset + " AND (" + selection + ")",
+                args, sortOrder);
+    }
+}
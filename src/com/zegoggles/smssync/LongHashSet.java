@@ -0,0 +1,99 @@
+package com.zegoggles.smssync;
+
+import java.util.Arrays;
+
+/**
+ * A set of primitive longs using open addressing (linear probing). Needs a lot less
+ * memory than a {@link java.util.HashSet} of boxed values.
+ */
+public class LongHashSet {
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final long EMPTY = 0;
+
+    private long[] table;
+    private int size;
+    private boolean containsEmpty;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) capacity <<= 1;
+        table = new long[capacity];
+    }
+
+    /**
+     * @return true if the value was added, false if it was already in the set
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsEmpty) return false;
+            containsEmpty = true;
+            size++;
+            return true;
+        }
+
+        int i = indexOf(table, value);
+        if (table[i] == value) return false;
+
+        table[i] = value;
+        if (++size > table.length * LOAD_FACTOR) grow();
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) return containsEmpty;
+        return table[indexOf(table, value)] == value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return all values in the set, in no particular order
+     */
+    public long[] toArray() {
+        final long[] values = new long[size];
+        int n = 0;
+        if (containsEmpty) values[n++] = EMPTY;
+        for (long value : table) {
+            if (value != EMPTY) values[n++] = value;
+        }
+        return values;
+    }
+
+    public void clear() {
+        Arrays.fill(table, EMPTY);
+        containsEmpty = false;
+        size = 0;
+    }
+
+    private void grow() {
+        final long[] newTable = new long[table.length << 1];
+        for (long value : table) {
+            if (value != EMPTY) newTable[indexOf(newTable, value)] = value;
+        }
+        table = newTable;
+    }
+
+    /**
+     * @return the slot containing the value, or the empty slot where it should go
+     */
+    private static int indexOf(long[] table, long value) {
+        final int mask = table.length - 1;
+        int i = mix(value) & mask;
+        while (table[i] != EMPTY && table[i] != value) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int mix(long value) {
+        // spread the bits, values are often sequential (UIDs) or hashes
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
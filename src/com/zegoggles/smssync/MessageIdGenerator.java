@@ -0,0 +1,119 @@
+package com.zegoggles.smssync;
+
+import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Creates the Message-IDs of backed up messages: the MD5 of date, address and type.
+ * <p/>
+ * The output has to stay exactly the same, older backups and contrib/dedup.py rely on it.
+ * Digest and buffers are reused per thread, since this is called for every converted item.
+ */
+public class MessageIdGenerator {
+    private static final String PREFIX = "<";
+    private static final String SUFFIX = "@sms-backup-plus.local>";
+    private static final int MD5_LENGTH = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageIdGenerator> GENERATOR = new ThreadLocal<MessageIdGenerator>() {
+        @Override protected MessageIdGenerator initialValue() {
+            return new MessageIdGenerator();
+        }
+    };
+
+    private final MessageDigest digest;
+    private final byte[] md5 = new byte[MD5_LENGTH];
+    private final char[] chars = new char[PREFIX.length() + MD5_LENGTH * 2 + SUFFIX.length()];
+    private byte[] buffer = new byte[64];
+
+    private MessageIdGenerator() {
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        PREFIX.getChars(0, PREFIX.length(), chars, 0);
+        SUFFIX.getChars(0, SUFFIX.length(), chars, chars.length - SUFFIX.length());
+    }
+
+    /**
+     * Create a message-id based on message date, phone number and message type.
+     *
+     * @param sent send date, in ms
+     * @param address the address
+     * @param type the type
+     * @return the message-id
+     */
+    public static String createMessageId(long sent, String address, int type) {
+        return GENERATOR.get().create(sent, address, type);
+    }
+
+    private String create(long sent, String address, int type) {
+        int length = putLong(0, sent);
+        length = putString(length, address);
+        length = putLong(length, type);
+
+        digest.reset();
+        digest.update(buffer, 0, length);
+        try {
+            digest.digest(md5, 0, MD5_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+
+        int pos = PREFIX.length();
+        for (byte b : md5) {
+            chars[pos++] = HEX_DIGITS[(b >> 4) & 0xf];
+            chars[pos++] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /** writes the decimal representation, same bytes as Long.toString(value).getBytes() */
+    private int putLong(int pos, long value) {
+        if (value < 0) return putString(pos, Long.toString(value));
+
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) digits++;
+        ensureCapacity(pos + digits);
+
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    /** writes the string UTF-8 encoded */
+    private int putString(int pos, String s) {
+        final int length = s.length();
+        ensureCapacity(pos + length);
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) return putEncoded(pos, s);
+            buffer[pos + i] = (byte) c;
+        }
+        return pos + length;
+    }
+
+    private int putEncoded(int pos, String s) {
+        try {
+            final byte[] bytes = s.getBytes("UTF-8");
+            ensureCapacity(pos + bytes.length);
+            System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+            return pos + bytes.length;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            final byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, buffer.length);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.zegoggles.smssync;
+
+import android.content.Context;
+
+/**
+ * Hashes of the Message-IDs stored in a backup folder, used to skip uploading messages
+ * which are already on the server (e.g. after the max synced dates have been reset).
+ * Collisions of the 64 bit hashes are possible in theory but very unlikely.
+ */
+public class MessageIdIndex extends FolderIndex {
+    private static final String PREFIX = "msgids-";
+
+    private MessageIdIndex(Context context, String name) {
+        super(context, PREFIX, name);
+    }
+
+    /**
+     * @param context the context
+     * @param name a name identifying the folder
+     * @return the stored index, or an empty one if there is none
+     */
+    public static MessageIdIndex load(Context context, String name) {
+        final MessageIdIndex index = new MessageIdIndex(context, name);
+        index.load();
+        return index;
+    }
+
+    /**
+     * Deletes the indexes of all folders.
+     */
+    public static void deleteAll(Context context) {
+        deleteAll(context, PREFIX);
+    }
+
+    public boolean contains(String messageId) {
+        return messageId != null && containsHash(DuplicateIndex.hashValues(messageId.trim()));
+    }
+
+    public void add(String messageId) {
+        if (messageId != null) addHash(DuplicateIndex.hashValues(messageId.trim()));
+    }
+}
@@ -0,0 +1,160 @@
+package com.zegoggles.smssync;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Loads the addresses and parts of MMS for a window of message ids with one query each,
+ * instead of two queries per message. Providers which don't support querying all
+ * addresses / parts (content://mms/addr is not part of the platform provider) get
+ * queried per message.
+ */
+public class MmsLoader {
+    static final int WINDOW = 50;
+
+    private static final Uri ADDR_URI = Uri.withAppendedPath(ServiceBase.MMS_PROVIDER, "addr");
+    private static final Uri PART_URI = Uri.withAppendedPath(ServiceBase.MMS_PROVIDER, "part");
+    private static final String[] ADDR_PROJECTION = { "msg_id", "address" };
+    private static final String[] PART_PROJECTION = { "mid", "_id", "ct", "cl", "text" };
+
+    private final ContentResolver resolver;
+    private final Map<String, List<String>> addresses = new HashMap<String, List<String>>();
+    private final Map<String, List<Part>> parts = new HashMap<String, List<Part>>();
+    private boolean batchAddresses = true, batchParts = true;
+
+    /** the columns of a part needed to build the message */
+    public static class Part {
+        public final String id, contentType, fileName, text;
+
+        Part(String id, String contentType, String fileName, String text) {
+            this.id = id;
+            this.contentType = contentType;
+            this.fileName = fileName;
+            this.text = text;
+        }
+    }
+
+    public MmsLoader(ContentResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @return true if the message needs to be passed to {@link #load} first, false if it
+     *         has been loaded already or the provider only supports per message queries
+     */
+    public boolean needsLoad(String id) {
+        return (batchAddresses && !addresses.containsKey(id)) || (batchParts && !parts.containsKey(id));
+    }
+
+    /**
+     * Loads addresses and parts of the given messages, replacing the previous window.
+     */
+    public void load(Collection<String> ids) {
+        addresses.clear();
+        parts.clear();
+        if (ids.isEmpty()) return;
+
+        final String selection = inSelection(ids.size());
+        final String[] args = ids.toArray(new String[ids.size()]);
+        if (batchAddresses) {
+            batchAddresses = loadAddresses(ids, selection, args);
+        }
+        if (batchParts) {
+            batchParts = loadParts(ids, selection, args);
+        }
+    }
+
+    /**
+     * @return the addresses of the message, in provider order
+     */
+    public List<String> getAddresses(String id) {
+        final List<String> loaded = addresses.get(id);
+        if (loaded != null) return loaded;
+
+        final List<String> result = new ArrayList<String>();
+        final Cursor c = resolver.query(Uri.withAppendedPath(ServiceBase.MMS_PROVIDER, id + "/addr"),
+                null, null, null, null);
+        while (c != null && c.moveToNext()) {
+            result.add(c.getString(c.getColumnIndex("address")));
+        }
+        if (c != null) c.close();
+        return result;
+    }
+
+    /**
+     * @return the parts of the message, in provider order
+     */
+    public List<Part> getParts(String id) {
+        final List<Part> loaded = parts.get(id);
+        if (loaded != null) return loaded;
+
+        final List<Part> result = new ArrayList<Part>();
+        final Cursor c = resolver.query(Uri.withAppendedPath(ServiceBase.MMS_PROVIDER, id + "/part"),
+                null, null, null, null);
+        while (c != null && c.moveToNext()) {
+            result.add(new Part(c.getString(c.getColumnIndex("_id")),
+                    c.getString(c.getColumnIndex("ct")),
+                    c.getString(c.getColumnIndex("cl")),
+                    c.getString(c.getColumnIndex("text"))));
+        }
+        if (c != null) c.close();
+        return result;
+    }
+
+    private boolean loadAddresses(Collection<String> ids, String selection, String[] args) {
+        final Cursor c = query(ADDR_URI, ADDR_PROJECTION, "msg_id" + selection, args, "msg_id, _id");
+        if (c == null) return false;
+        try {
+            for (String id : ids) addresses.put(id, new ArrayList<String>());
+            while (c.moveToNext()) {
+                final List<String> list = addresses.get(c.getString(0));
+                if (list != null) list.add(c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return true;
+    }
+
+    private boolean loadParts(Collection<String> ids, String selection, String[] args) {
+        final Cursor c = query(PART_URI, PART_PROJECTION, "mid" + selection, args, "mid, _id");
+        if (c == null) return false;
+        try {
+            for (String id : ids) parts.put(id, new ArrayList<Part>());
+            while (c.moveToNext()) {
+                final List<Part> list = parts.get(c.getString(0));
+                if (list != null) list.add(new Part(c.getString(1), c.getString(2), c.getString(3), c.getString(4)));
+            }
+        } finally {
+            c.close();
+        }
+        return true;
+    }
+
+    private Cursor query(Uri uri, String[] projection, String selection, String[] args, String sortOrder) {
+        try {
+            final Cursor c = resolver.query(uri, projection, selection, args, sortOrder);
+            if (c == null) Log.w(TAG, uri + " not supported, loading MMS one by one");
+            return c;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "error querying " + uri + ", loading MMS one by one", e);
+            return null;
+        }
+    }
+
+    private static String inSelection(int count) {
+        return " IN (" + TextUtils.join(",", Collections.nCopies(count, "?")) + ")";
+    }
+}
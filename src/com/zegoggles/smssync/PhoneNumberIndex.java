@@ -0,0 +1,107 @@
+package com.zegoggles.smssync;
+
+import android.telephony.PhoneNumberUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A LRU map keyed by phone number. Numbers are stored in their {@link PhoneNumbers#normalize
+ * normalized} form; numbers without an exact match are looked up by their last digits and
+ * compared with {@link PhoneNumberUtils#compare}, so that e.g. national and international
+ * versions of a number find the same entry.
+ *
+ * @param <V> the type of the values
+ */
+public class PhoneNumberIndex<V> {
+    private final LinkedHashMap<String, V> entries;
+    private final Map<String, List<String>> suffixes = new HashMap<String, List<String>>();
+
+    /**
+     * @param maxSize the max number of entries, least recently used ones get removed
+     */
+    @SuppressWarnings("serial")
+    public PhoneNumberIndex(final int maxSize) {
+        entries = new LinkedHashMap<String, V>(16, .75F, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() > maxSize) {
+                    removeSuffix(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean containsKey(String address) {
+        return findKey(address) != null;
+    }
+
+    /**
+     * @return the value for the number, or null
+     */
+    public V get(String address) {
+        final String key = findKey(address);
+        return key == null ? null : entries.get(key);
+    }
+
+    public void put(String address, V value) {
+        String key = findKey(address);
+        if (key == null) {
+            key = PhoneNumbers.normalize(address);
+            final String suffix = PhoneNumbers.suffix(key);
+            if (suffix != null) {
+                List<String> keys = suffixes.get(suffix);
+                if (keys == null) {
+                    keys = new ArrayList<String>(1);
+                    suffixes.put(suffix, keys);
+                }
+                keys.add(key);
+            }
+        }
+        entries.put(key, value);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the entries, keyed by normalized number
+     */
+    public Set<Map.Entry<String, V>> entrySet() {
+        return entries.entrySet();
+    }
+
+    public void clear() {
+        entries.clear();
+        suffixes.clear();
+    }
+
+    private String findKey(String address) {
+        final String normalized = PhoneNumbers.normalize(address);
+        if (entries.containsKey(normalized)) return normalized;
+
+        final String suffix = PhoneNumbers.suffix(normalized);
+        final List<String> keys = suffix == null ? null : suffixes.get(suffix);
+        if (keys != null) {
+            for (String key : keys) {
+                if (PhoneNumberUtils.compare(normalized, key)) return key;
+            }
+        }
+        return null;
+    }
+
+    private void removeSuffix(String key) {
+        final String suffix = PhoneNumbers.suffix(key);
+        final List<String> keys = suffix == null ? null : suffixes.get(suffix);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) suffixes.remove(suffix);
+        }
+    }
+}
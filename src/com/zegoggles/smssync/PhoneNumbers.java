@@ -0,0 +1,54 @@
+package com.zegoggles.smssync;
+
+import java.util.Locale;
+
+/**
+ * Canonical forms of phone numbers, so that differently formatted versions of the same
+ * number ("+41 79 123 45 67", "0041791234567") share cache entries.
+ */
+public class PhoneNumbers {
+    /** number of trailing digits compared by the platform's caller-id matching */
+    static final int MIN_MATCH = 7;
+
+    private PhoneNumbers() {
+    }
+
+    /**
+     * @param address a phone number or other address (e.g. an alphanumeric sender)
+     * @return the number with formatting characters removed and the international
+     *         prefix 00 replaced by +, or the lower cased address if it is not a number
+     */
+    public static String normalize(String address) {
+        final String trimmed = address.trim();
+        final StringBuilder sb = new StringBuilder(trimmed.length());
+        for (int i = 0; i < trimmed.length(); i++) {
+            final char c = trimmed.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append(c);
+            } else if (c == '+' && sb.length() == 0) {
+                sb.append(c);
+            } else if (c != ' ' && c != '-' && c != '(' && c != ')' && c != '.' && c != '/') {
+                return trimmed.toLowerCase(Locale.ENGLISH);
+            }
+        }
+        if (sb.length() > 2 && sb.charAt(0) == '0' && sb.charAt(1) == '0') {
+            sb.replace(0, 2, "+");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param number a normalized number
+     * @return the last {@link #MIN_MATCH} digits, or null if the number has fewer digits
+     *         or is not a phone number
+     */
+    public static String suffix(String number) {
+        final int start = number.startsWith("+") ? 1 : 0;
+        if (number.length() - start < MIN_MATCH) return null;
+        for (int i = start; i < number.length(); i++) {
+            final char c = number.charAt(i);
+            if (c < '0' || c > '9') return null;
+        }
+        return number.substring(number.length() - MIN_MATCH);
+    }
+}
@@ -18,7 +18,9 @@ package com.zegoggles.smssync;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import android.annotation.TargetApi;
 import android.os.Build;
@@ -40,8 +42,8 @@ import org.apache.commons.codec.binary.Base64;
 public class PrefStore {
 
     /**
-     * Preference key containing the maximum date of messages that were
-     * successfully synced.
+     * Key containing the maximum date of messages that were
+     * successfully synced. Stored in {@link SyncStateStore}.
      */
     static final String PREF_MAX_SYNCED_DATE_SMS = "max_synced_date";
     static final String PREF_MAX_SYNCED_DATE_MMS = "max_synced_date_mms";
@@ -88,9 +90,18 @@ public class PrefStore {
     /** Preference key for the interval between backup of outgoing SMS. */
     static final String PREF_REGULAR_TIMEOUT_SECONDS = "auto_backup_schedule";
 
+    /** Preference key for how long (seconds) idle IMAP connections are kept for reuse. */
+    static final String PREF_CONNECTION_KEEP_ALIVE_SECONDS = "connection_keep_alive";
+
+    /** Preference key for negotiating COMPRESS=DEFLATE with servers supporting it. */
+    static final String PREF_IMAP_COMPRESSION = "imap_compression";
+
     /** Preference for storing the maximum items per sync. */
     static final String PREF_MAX_ITEMS_PER_SYNC = "max_items_per_sync";
 
+    /** Preference for storing the number of items uploaded per IMAP request. */
+    static final String PREF_MAX_ITEMS_PER_REQUEST = "max_items_per_request";
+
     /** Preference for storing the maximum items per restore. */
     static final String PREF_MAX_ITEMS_PER_RESTORE = "max_items_per_restore";
 
@@ -100,6 +111,15 @@ public class PrefStore {
     /** Preference for storing whether backed up messages should be marked as read on Gmail. */
     static final String PREF_MARK_AS_READ = "mark_as_read";
 
+    /** Preference for storing whether duplicates should be removed from the server after a backup. */
+    static final String PREF_REMOVE_DUPLICATES = "remove_duplicates";
+
+    /** Preference for the max width / height of backed up MMS images, 0 to keep the original. */
+    static final String PREF_MMS_IMAGE_MAX_SIZE = "mms_image_max_size";
+
+    /** Preference for uploading repeated MMS attachments only once. */
+    static final String PREF_DEDUP_MMS_ATTACHMENTS = "dedup_mms_attachments";
+
     /** Preference for storing whether restored messages should be marked as read. */
     static final String PREF_MARK_AS_READ_ON_RESTORE = "mark_as_read_on_restore";
 
@@ -147,9 +167,21 @@ public class PrefStore {
     /** Default value for {@link PrefStore#PREF_REGULAR_TIMEOUT_SECONDS}. */
     static final int DEFAULT_REGULAR_TIMEOUT_SECONDS = 2 * 60 * 60; // 2h
 
+    /** Default value for {@link #PREF_CONNECTION_KEEP_ALIVE_SECONDS}. */
+    static final int DEFAULT_CONNECTION_KEEP_ALIVE_SECONDS = 30 * 60;
+
+    /** Default value for {@link #PREF_IMAP_COMPRESSION}. */
+    static final boolean DEFAULT_IMAP_COMPRESSION = true;
+
+    /** Default value for {@link #PREF_MMS_IMAGE_MAX_SIZE}. */
+    static final int DEFAULT_MMS_IMAGE_MAX_SIZE = 0;
+
     /** Default value for {@link #PREF_MAX_ITEMS_PER_SYNC}. */
     static final int DEFAULT_MAX_ITEMS_PER_SYNC = -1;
 
+    /** Default value for {@link #PREF_MAX_ITEMS_PER_REQUEST}. */
+    static final int DEFAULT_MAX_ITEMS_PER_REQUEST = 10;
+
     static final int DEFAULT_MAX_ITEMS_PER_RESTORE = -1;
 
     /** Default value for {@link #PREF_MARK_AS_READ}. */
@@ -192,34 +224,41 @@ public class PrefStore {
     }
 
     static long getMaxSyncedDateSms(Context ctx) {
-        return getPrefs(ctx).getLong(PREF_MAX_SYNCED_DATE_SMS, DEFAULT_MAX_SYNCED_DATE);
+        return SyncStateStore.get(ctx).getLong(PREF_MAX_SYNCED_DATE_SMS, DEFAULT_MAX_SYNCED_DATE);
     }
 
     static long getMaxSyncedDateMms(Context ctx) {
-        return getPrefs(ctx).getLong(PREF_MAX_SYNCED_DATE_MMS, DEFAULT_MAX_SYNCED_DATE);
+        return SyncStateStore.get(ctx).getLong(PREF_MAX_SYNCED_DATE_MMS, DEFAULT_MAX_SYNCED_DATE);
     }
 
     static long getMaxSyncedDateCallLog(Context ctx) {
-        return getPrefs(ctx).getLong(PREF_MAX_SYNCED_DATE_CALLLOG, DEFAULT_MAX_SYNCED_DATE);
+        return SyncStateStore.get(ctx).getLong(PREF_MAX_SYNCED_DATE_CALLLOG, DEFAULT_MAX_SYNCED_DATE);
     }
 
     static void setMaxSyncedDateSms(Context ctx, long maxSyncedDate) {
-        getPrefs(ctx).edit()
-          .putLong(PREF_MAX_SYNCED_DATE_SMS, maxSyncedDate)
-          .commit();
+        SyncStateStore.get(ctx).putLong(PREF_MAX_SYNCED_DATE_SMS, maxSyncedDate);
     }
 
     static void setMaxSyncedDateMms(Context ctx, long maxSyncedDate) {
-        getPrefs(ctx).edit()
-          .putLong(PREF_MAX_SYNCED_DATE_MMS, maxSyncedDate)
-          .commit();
+        SyncStateStore.get(ctx).putLong(PREF_MAX_SYNCED_DATE_MMS, maxSyncedDate);
     }
 
     static void setMaxSyncedDateCallLog(Context ctx, long maxSyncedDate) {
-        getPrefs(ctx).edit()
-          .putLong(PREF_MAX_SYNCED_DATE_CALLLOG, maxSyncedDate)
-          .commit();
+        SyncStateStore.get(ctx).putLong(PREF_MAX_SYNCED_DATE_CALLLOG, maxSyncedDate);
     }
+
+    /**
+     * Sets several max synced dates in one transaction. Pass null for types which
+     * should stay unchanged.
+     */
+    static void setMaxSyncedDates(Context ctx, Long sms, Long mms, Long callLog) {
+        final Map<String, Long> dates = new HashMap<String, Long>(3);
+        if (sms != null) dates.put(PREF_MAX_SYNCED_DATE_SMS, sms);
+        if (mms != null) dates.put(PREF_MAX_SYNCED_DATE_MMS, mms);
+        if (callLog != null) dates.put(PREF_MAX_SYNCED_DATE_CALLLOG, callLog);
+        SyncStateStore.get(ctx).putLongs(dates);
+    }
+
     static String getImapUsername(Context ctx) {
         return getPrefs(ctx).getString(PREF_LOGIN_USER, null);
     }
@@ -411,6 +450,10 @@ public class PrefStore {
       return getStringAsInt(ctx, PREF_MAX_ITEMS_PER_SYNC, DEFAULT_MAX_ITEMS_PER_SYNC);
     }
 
+    static int getMaxItemsPerRequest(Context ctx) {
+      return Math.max(1, getStringAsInt(ctx, PREF_MAX_ITEMS_PER_REQUEST, DEFAULT_MAX_ITEMS_PER_REQUEST));
+    }
+
     static int getMaxItemsPerRestore(Context ctx) {
       return getStringAsInt(ctx, PREF_MAX_ITEMS_PER_RESTORE, DEFAULT_MAX_ITEMS_PER_RESTORE);
     }
@@ -461,16 +504,36 @@ public class PrefStore {
         return getStringAsInt(ctx, PREF_REGULAR_TIMEOUT_SECONDS, DEFAULT_REGULAR_TIMEOUT_SECONDS);
     }
 
+    static int getConnectionKeepAliveSecs(Context ctx) {
+        return getStringAsInt(ctx, PREF_CONNECTION_KEEP_ALIVE_SECONDS, DEFAULT_CONNECTION_KEEP_ALIVE_SECONDS);
+    }
+
+    static boolean isImapCompressionEnabled(Context ctx) {
+        return getPrefs(ctx).getBoolean(PREF_IMAP_COMPRESSION, DEFAULT_IMAP_COMPRESSION);
+    }
+
     static boolean getMarkAsRead(Context ctx) {
         return getPrefs(ctx).getBoolean(PREF_MARK_AS_READ, DEFAULT_MARK_AS_READ);
     }
 
+    static boolean isRemoveDuplicates(Context ctx) {
+        return getPrefs(ctx).getBoolean(PREF_REMOVE_DUPLICATES, false);
+    }
+
+    static int getMmsImageMaxSize(Context ctx) {
+        return getStringAsInt(ctx, PREF_MMS_IMAGE_MAX_SIZE, DEFAULT_MMS_IMAGE_MAX_SIZE);
+    }
+
+    static boolean isMmsAttachmentDedupEnabled(Context ctx) {
+        return getPrefs(ctx).getBoolean(PREF_DEDUP_MMS_ATTACHMENTS, false);
+    }
+
     static boolean getMarkAsReadOnRestore(Context ctx) {
         return getPrefs(ctx).getBoolean(PREF_MARK_AS_READ_ON_RESTORE, DEFAULT_MARK_AS_READ_ON_RESTORE);
     }
 
     static boolean isFirstSync(Context ctx) {
-        return !getPrefs(ctx).contains(PREF_MAX_SYNCED_DATE_SMS);
+        return !SyncStateStore.get(ctx).contains(PREF_MAX_SYNCED_DATE_SMS);
     }
 
     static boolean isFirstUse(Context ctx) {
@@ -505,11 +568,15 @@ public class PrefStore {
     }
 
     static void clearLastSyncData(Context ctx) {
-        getPrefs(ctx).edit()
-          .remove(PREF_MAX_SYNCED_DATE_SMS)
-          .remove(PREF_MAX_SYNCED_DATE_MMS)
-          .remove(PREF_MAX_SYNCED_DATE_CALLLOG)
-          .commit();
+        SyncStateStore.get(ctx).remove(
+          PREF_MAX_SYNCED_DATE_SMS,
+          PREF_MAX_SYNCED_DATE_MMS,
+          PREF_MAX_SYNCED_DATE_CALLLOG);
+        SyncStateStore.get(ctx).removePrefix(BackupImapStore.RESTORE_STATE_PREFIX);
+        // the folders might have been emptied as well
+        MessageIdIndex.deleteAll(ctx);
+        DedupIndex.deleteAll(ctx);
+        AttachmentIndex.deleteAll(ctx);
     }
 
     static boolean isNotificationEnabled(Context ctx) {
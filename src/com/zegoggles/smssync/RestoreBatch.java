@@ -0,0 +1,62 @@
+package com.zegoggles.smssync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Collects restored items and inserts them with one {@link ContentResolver#bulkInsert}
+ * call, instead of one binder transaction per item.
+ */
+public class RestoreBatch {
+    static final int MAX_BATCH_SIZE = 100;
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final List<ContentValues> pending = new ArrayList<ContentValues>(MAX_BATCH_SIZE);
+
+    /**
+     * @param resolver the resolver
+     * @param uri the provider to insert into
+     */
+    public RestoreBatch(ContentResolver resolver, Uri uri) {
+        this.resolver = resolver;
+        this.uri = uri;
+    }
+
+    /**
+     * Adds an item to the batch.
+     *
+     * @return true if the batch is full and should be flushed
+     */
+    public boolean add(ContentValues values) {
+        pending.add(values);
+        return pending.size() >= MAX_BATCH_SIZE;
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Inserts all pending items.
+     *
+     * @return the number of inserted items
+     */
+    public int flush() {
+        if (pending.isEmpty()) return 0;
+
+        final int inserted = resolver.bulkInsert(uri,
+                pending.toArray(new ContentValues[pending.size()]));
+        if (LOCAL_LOGV) Log.v(TAG, "inserted " + inserted + "/" + pending.size() + " into " + uri);
+
+        pending.clear();
+        return inserted;
+    }
+}
@@ -95,11 +95,11 @@ public abstract class ServiceBase extends Service {
     }
 
     protected BackupImapStore.BackupFolder getSMSBackupFolder() throws MessagingException {
-        return new BackupImapStore(this).getSMSBackupFolder();
+        return BackupImapStore.getInstance(this).getSMSBackupFolder();
     }
 
     protected BackupImapStore.BackupFolder getCallLogBackupFolder() throws MessagingException {
-        return new BackupImapStore(this).getCallLogBackupFolder();
+        return BackupImapStore.getInstance(this).getCallLogBackupFolder();
     }
 
     /**
@@ -31,27 +31,22 @@ import com.zegoggles.smssync.CursorToMessage.DataType;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.os.AsyncTask;
 import android.provider.CallLog;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class SmsBackupService extends ServiceBase {
-    /** Number of messages sent per sync request. */
-    /**
-     * Changing this value will cause mms/sms messages to thread out of order.
-     */
-    private static final int MAX_MSG_PER_REQUEST = 1;
-
     /**
      * Flag indicating whether this service is already running.
      */
@@ -124,8 +119,10 @@ public class SmsBackupService extends ServiceBase {
     class BackupTask extends AsyncTask<Intent, SmsSyncState, Integer> {
         private final Context context = SmsBackupService.this;
         private final int maxItemsPerSync = PrefStore.getMaxItemsPerSync(context);
+        private final int maxItemsPerRequest = PrefStore.getMaxItemsPerRequest(context);
         private final ContactGroup groupToBackup = PrefStore.getBackupContactGroup(context);
         private boolean background;
+        private AttachmentIndex attachmentIndex;
 
         @Override
         protected void onPreExecute() {
@@ -143,23 +140,25 @@ public class SmsBackupService extends ServiceBase {
 
             appLog(R.string.app_log_start_backup, getSource(intent));
 
-            Cursor smsItems = null;
-            Cursor mmsItems = null;
-            Cursor callLogItems = null;
+            BackupCursors items = null;
             final int smsCount, mmsCount, callLogCount;
             try {
                 acquireLocks(background);
-                smsItems = getSmsItemsToSync(maxItemsPerSync, groupToBackup);
+                final KeysetPager smsItems = getSmsItemsToSync(maxItemsPerSync, groupToBackup);
                 smsCount = smsItems != null ? smsItems.getCount() : 0;
 
-                mmsItems = getMmsItemsToSync(maxItemsPerSync - smsCount, groupToBackup);
+                // items get merged by date, so each type might contribute up to maxItemsPerSync
+                final KeysetPager mmsItems = getMmsItemsToSync(maxItemsPerSync, groupToBackup);
                 mmsCount = mmsItems != null ? mmsItems.getCount() : 0;
 
-                callLogItems = getCallLogItemsToSync(maxItemsPerSync - smsCount - mmsCount);
+                final KeysetPager callLogItems = getCallLogItemsToSync(maxItemsPerSync);
                 callLogCount = callLogItems != null ? callLogItems.getCount() : 0;
 
                 sCurrentSyncedItems = 0;
                 sItemsToSync = smsCount + mmsCount + callLogCount;
+                if (maxItemsPerSync > 0) {
+                    sItemsToSync = Math.min(sItemsToSync, maxItemsPerSync);
+                }
 
                 if (sItemsToSync > 0) {
                     if (!PrefStore.isLoginInformationSet(context)) {
@@ -171,7 +170,8 @@ public class SmsBackupService extends ServiceBase {
                     }
 
                     appLog(R.string.app_log_backup_messages, smsCount, mmsCount, callLogCount);
-                    return backup(smsItems, mmsItems, callLogItems);
+                    items = new BackupCursors(smsItems, mmsItems, callLogItems);
+                    return backup(items);
                 } else {
                     appLog(R.string.app_log_skip_backup_no_items);
 
@@ -187,6 +187,7 @@ public class SmsBackupService extends ServiceBase {
                     return 0;
                 }
             } catch (XOAuth2AuthenticationFailedException e) {
+                BackupImapStore.invalidate();
                 if (e.getStatus() == 400) {
                     Log.d(TAG, "need to perform xoauth2 token refresh");
                     if (!intent.hasExtra("refresh_retried") &&
@@ -206,10 +207,12 @@ public class SmsBackupService extends ServiceBase {
                 return null;
 
             } catch (AuthenticationFailedException e) {
+                BackupImapStore.invalidate();
                 appLog(R.string.app_log_backup_failed_authentication, translateException(e));
                 publish(AUTH_FAILED);
                 return null;
             } catch (MessagingException e) {
+                BackupImapStore.invalidate();
                 appLog(R.string.app_log_backup_failed_messaging, translateException(e));
                 lastError = translateException(e);
                 publish(GENERAL_ERROR);
@@ -221,11 +224,10 @@ public class SmsBackupService extends ServiceBase {
                 return null;
             } finally {
                 releaseLocks();
+                BackupImapStore.release();
 
                 try {
-                    if (smsItems != null) smsItems.close();
-                    if (mmsItems != null) mmsItems.close();
-                    if (callLogItems != null) callLogItems.close();
+                    if (items != null) items.close();
                 } catch (Exception e) {
                     Log.e(TAG, "error", e);
                 /* ignore */
@@ -265,75 +267,124 @@ public class SmsBackupService extends ServiceBase {
             sCanceled = false;
         }
 
-        private int backup(Cursor smsItems, Cursor mmsItems, Cursor callLogItems)
-                throws MessagingException {
+        private int backup(BackupCursors items) throws MessagingException {
             Log.i(TAG, String.format(Locale.ENGLISH, "Starting backup (%d messages)", sItemsToSync));
 
             final CursorToMessage converter = new CursorToMessage(context, PrefStore.getUserEmail(context));
+            CursorToMessage.MmsAttachmentBody.clearSpool(context);
 
             publish(LOGIN);
-            Folder smsmmsfolder = getSMSBackupFolder();
-            Folder callLogfolder = null;
+            BackupImapStore.BackupFolder smsmmsfolder = getSMSBackupFolder();
+            BackupImapStore.BackupFolder callLogfolder = null;
             if (PrefStore.isCallLogBackupEnabled(context)) {
                 callLogfolder = getCallLogBackupFolder();
             }
+            MessageIdIndex smsmmsIndex = null, callLogIndex = null;
 
+            final BackupCheckpoint checkpoint = new BackupCheckpoint(context);
+            final ConverterThread converterThread = new ConverterThread(converter, items,
+                    sItemsToSync, maxItemsPerRequest);
             try {
-                Cursor curCursor;
-                DataType dataType;
                 publish(CALC);
-                while (!sCanceled && (sCurrentSyncedItems < sItemsToSync)) {
-                    if (smsItems != null && smsItems.moveToNext()) {
-                        dataType = DataType.SMS;
-                        curCursor = smsItems;
-                    } else if (mmsItems != null && mmsItems.moveToNext()) {
-                        dataType = DataType.MMS;
-                        curCursor = mmsItems;
-                    } else if (callLogItems != null && callLogItems.moveToNext()) {
-                        dataType = DataType.CALLLOG;
-                        curCursor = callLogItems;
-                    } else break;
-
-                    if (LOCAL_LOGV) Log.v(TAG, "backing up: " + dataType);
-                    ConversionResult result = converter.cursorToMessages(curCursor, MAX_MSG_PER_REQUEST,
-                            dataType);
+                smsmmsIndex = smsmmsfolder.getMessageIdIndex();
+                if (callLogfolder != null) {
+                    // both might use the same label, and so the same index file
+                    callLogIndex = callLogfolder.getStateKey().equals(smsmmsfolder.getStateKey()) ?
+                            smsmmsIndex : callLogfolder.getMessageIdIndex();
+                }
+                if (PrefStore.isMmsAttachmentDedupEnabled(context)) {
+                    attachmentIndex = AttachmentIndex.load(context, smsmmsfolder, smsmmsIndex);
+                    converter.setAttachmentIndex(attachmentIndex);
+                }
+
+                converterThread.start();
+
+                ConversionResult result;
+                while (!sCanceled && (result = converterThread.next()) != null) {
                     List<Message> messages = result.messageList;
                     if (!messages.isEmpty()) {
                         if (LOCAL_LOGV) Log.v(TAG, String.format(Locale.ENGLISH, "sending %d %s message(s) to server.",
-                                messages.size(), dataType));
-                        switch (dataType) {
+                                messages.size(), result.type));
+                        switch (result.type) {
                             case MMS:
-                                updateMaxSyncedDateMms(result.maxDate);
-                                smsmmsfolder.appendMessages(messages.toArray(new Message[messages.size()]));
+                                append(smsmmsfolder, smsmmsIndex, messages);
                                 break;
                             case SMS:
-                                updateMaxSyncedDateSms(result.maxDate);
-                                smsmmsfolder.appendMessages(messages.toArray(new Message[messages.size()]));
+                                append(smsmmsfolder, smsmmsIndex, messages);
                                 break;
                             case CALLLOG:
-                                updateMaxSyncedDateCallLog(result.maxDate);
                                 if (callLogfolder != null) {
-                                    callLogfolder.appendMessages(messages.toArray(new Message[messages.size()]));
+                                    append(callLogfolder, callLogIndex, messages);
                                 }
                                 if (PrefStore.isCallLogCalendarSyncEnabled(context)) {
                                     syncCalendar(converter, result);
                                 }
                                 break;
                         }
+                        checkpoint.update(result.type, result.maxDate, messages.size());
                     }
 
                     sCurrentSyncedItems += messages.size();
                     publish(BACKUP);
                 }
 
+                if (!sCanceled && PrefStore.isRemoveDuplicates(context)) {
+                    final Deduplicator deduplicator = new Deduplicator(context);
+                    deduplicator.dedup(smsmmsfolder, smsmmsIndex);
+                    if (callLogfolder != null && callLogIndex != smsmmsIndex) {
+                        deduplicator.dedup(callLogfolder, callLogIndex);
+                    }
+                }
+
                 return sCurrentSyncedItems;
 
             } finally {
+                // make sure the converter is done with the cursors before they get closed
+                converterThread.finish();
+                // persist progress of everything uploaded so far, also on cancel / errors
+                checkpoint.flush();
+                if (smsmmsIndex != null) smsmmsIndex.save();
+                if (callLogIndex != null && callLogIndex != smsmmsIndex) callLogIndex.save();
+                if (attachmentIndex != null) attachmentIndex.save();
+                ContactCache.saveInstance();
                 if (smsmmsfolder != null) smsmmsfolder.close();
                 if (callLogfolder != null) callLogfolder.close();
             }
         }
 
+        /**
+         * Uploads all messages which are not in the folder yet.
+         */
+        private void append(Folder folder, MessageIdIndex index, List<Message> messages)
+                throws MessagingException {
+            final List<Message> newMessages = new ArrayList<Message>(messages.size());
+            for (Message message : messages) {
+                if (!index.contains(message.getMessageId())) {
+                    newMessages.add(message);
+                } else {
+                    // attachments might have been encoded during conversion
+                    CursorToMessage.MmsAttachmentBody.release(message);
+                }
+            }
+            if (newMessages.size() < messages.size()) {
+                Log.i(TAG, "skipping " + (messages.size() - newMessages.size()) + " message(s) already on server");
+            }
+            if (!newMessages.isEmpty()) {
+                folder.appendMessages(newMessages.toArray(new Message[newMessages.size()]));
+                for (Message message : newMessages) {
+                    index.add(message.getMessageId());
+                }
+            }
+            if (attachmentIndex != null) {
+                // all messages are on the server now, attachments can be referenced
+                final List<String> messageIds = new ArrayList<String>(messages.size());
+                for (Message message : messages) {
+                    messageIds.add(message.getMessageId());
+                }
+                attachmentIndex.commit(messageIds);
+            }
+        }
+
         private void syncCalendar(CursorToMessage converter, ConversionResult result) {
             if (result.type == DataType.CALLLOG) {
                 for (Map<String, String> m : result.mapList) {
@@ -369,56 +420,42 @@ public class SmsBackupService extends ServiceBase {
             }
         }
 
-        private Cursor getSmsItemsToSync(int max, ContactGroup group) {
+        private KeysetPager getSmsItemsToSync(int max, ContactGroup group) {
             if (LOCAL_LOGV) {
                 Log.v(TAG, String.format("getSmsItemToSync(max=%d),  maxSyncedDate=%d", max,
                         PrefStore.getMaxSyncedDateSms(context)));
             }
-            String sortOrder = SmsConsts.DATE;
-            if (max > 0) sortOrder += " LIMIT " + max;
-
-            return getContentResolver().query(SMS_PROVIDER, null,
-                    String.format(Locale.ENGLISH, "%s > ? AND %s <> ? %s", SmsConsts.DATE, SmsConsts.TYPE,
+            return new KeysetPager(getContentResolver(), SMS_PROVIDER, CursorToMessage.SMS_PROJECTION,
+                    String.format(Locale.ENGLISH, "%s <> ? %s", SmsConsts.TYPE,
                             groupSelection(DataType.SMS, group)),
-                    new String[]{String.valueOf(PrefStore.getMaxSyncedDateSms(context)),
-                            String.valueOf(SmsConsts.MESSAGE_TYPE_DRAFT)},
-                    sortOrder);
+                    new String[]{String.valueOf(SmsConsts.MESSAGE_TYPE_DRAFT)},
+                    PrefStore.getMaxSyncedDateSms(context), max);
         }
 
-        private Cursor getMmsItemsToSync(int max, ContactGroup group) {
+        private KeysetPager getMmsItemsToSync(int max, ContactGroup group) {
             if (LOCAL_LOGV) Log.v(TAG, "getMmsItemsToSync(max=" + max + ")");
 
             if (!PrefStore.isMmsBackupEnabled(context)) {
-                // return empty cursor if we don't have MMS
-                if (LOCAL_LOGV) Log.v(TAG, "MMS backup disabled, returning empty cursor");
-                return new MatrixCursor(new String[0], 0);
+                if (LOCAL_LOGV) Log.v(TAG, "MMS backup disabled, returning no items");
+                return null;
             }
-            String sortOrder = SmsConsts.DATE;
-            if (max > 0) sortOrder += " LIMIT " + max;
-
-            return getContentResolver().query(MMS_PROVIDER, null,
-                    String.format(Locale.ENGLISH, "%s > ? AND %s <> ? %s", SmsConsts.DATE, MmsConsts.TYPE,
+            return new KeysetPager(getContentResolver(), MMS_PROVIDER, CursorToMessage.MMS_PROJECTION,
+                    String.format(Locale.ENGLISH, "%s <> ? %s", MmsConsts.TYPE,
                             groupSelection(DataType.MMS, group)),
-                    new String[]{String.valueOf(PrefStore.getMaxSyncedDateMms(context)),
-                            MmsConsts.DELIVERY_REPORT},
-                    sortOrder);
+                    new String[]{MmsConsts.DELIVERY_REPORT},
+                    PrefStore.getMaxSyncedDateMms(context), max);
         }
 
-        private Cursor getCallLogItemsToSync(int max) {
+        private KeysetPager getCallLogItemsToSync(int max) {
             if (LOCAL_LOGV) Log.v(TAG, "getCallLogItemsToSync(max=" + max + ")");
 
             if (!PrefStore.isCallLogBackupEnabled(context)) {
-                if (LOCAL_LOGV) Log.v(TAG, "CallLog backup disabled, returning empty cursor");
-                return new MatrixCursor(new String[0], 0);
+                if (LOCAL_LOGV) Log.v(TAG, "CallLog backup disabled, returning no items");
+                return null;
             }
-            String sortOrder = SmsConsts.DATE;
-            if (max > 0) sortOrder += " LIMIT " + max;
-
-            return getContentResolver().query(CALLLOG_PROVIDER,
-                    CursorToMessage.CALLLOG_PROJECTION,
-                    String.format(Locale.ENGLISH, "%s > ?", CallLog.Calls.DATE),
-                    new String[]{String.valueOf(PrefStore.getMaxSyncedDateCallLog(context))},
-                    sortOrder);
+            return new KeysetPager(getContentResolver(), CALLLOG_PROVIDER, CursorToMessage.CALLLOG_PROJECTION,
+                    null, null,
+                    PrefStore.getMaxSyncedDateCallLog(context), max);
         }
 
         private String groupSelection(DataType type, ContactGroup group) {
@@ -472,6 +509,108 @@ public class SmsBackupService extends ServiceBase {
         }
     }
 
+    /**
+     * Converts cursor rows to messages on a separate thread, so that building the MIME
+     * messages overlaps with uploading the previous batch. At most
+     * {@link #MAX_QUEUED_BATCHES} converted batches are held in memory; the converter
+     * blocks until the uploader has caught up.
+     */
+    static class ConverterThread extends Thread {
+        private static final int MAX_QUEUED_BATCHES = 2;
+        /** marks the end of the queue */
+        private static final ConversionResult END = new ConversionResult(null);
+
+        private final BlockingQueue<ConversionResult> queue =
+                new ArrayBlockingQueue<ConversionResult>(MAX_QUEUED_BATCHES);
+
+        private final CursorToMessage converter;
+        private final BackupCursors items;
+        private final int maxItems;
+        private final int maxItemsPerRequest;
+
+        private volatile boolean stopped;
+        private volatile Exception error;
+
+        ConverterThread(CursorToMessage converter, BackupCursors items, int maxItems, int maxItemsPerRequest) {
+            super("converter");
+            this.converter = converter;
+            this.items = items;
+            this.maxItems = maxItems;
+            this.maxItemsPerRequest = maxItemsPerRequest;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ConversionResult batch = null;
+                DataType dataType;
+                int converted = 0;
+                while (!stopped && !sCanceled && converted < maxItems && (dataType = items.next()) != null) {
+                    // batches only contain items of one type, a change of type starts a new one
+                    if (batch != null && (batch.type != dataType ||
+                                          batch.messageList.size() >= maxItemsPerRequest)) {
+                        queue.put(batch);
+                        batch = null;
+                    }
+                    if (batch == null) batch = new ConversionResult(dataType);
+
+                    if (LOCAL_LOGV) Log.v(TAG, "converting: " + dataType);
+                    converter.cursorToMessage(items.getCursor(), batch);
+                    converted++;
+                }
+                if (batch != null && !stopped) queue.put(batch);
+            } catch (InterruptedException e) {
+                return; // stopped by uploader, nobody is waiting for END
+            } catch (MessagingException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = e;
+            }
+
+            try {
+                queue.put(END);
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        /**
+         * @return the next converted batch, blocking until it is available, or null if
+         *         all items have been converted.
+         * @throws MessagingException if the conversion failed
+         */
+        ConversionResult next() throws MessagingException {
+            final ConversionResult result;
+            try {
+                result = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+
+            if (result == END) {
+                if (error instanceof MessagingException) {
+                    throw (MessagingException) error;
+                } else if (error instanceof RuntimeException) {
+                    throw (RuntimeException) error;
+                }
+                return null;
+            } else {
+                return result;
+            }
+        }
+
+        /** Stops converting and waits for the thread to terminate. */
+        void finish() {
+            stopped = true;
+            interrupt();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /**
      * Cancels the current ongoing backup.
      */
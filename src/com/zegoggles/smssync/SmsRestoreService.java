@@ -2,7 +2,6 @@ package com.zegoggles.smssync;
 
 import android.content.ContentValues;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.content.Context;
@@ -14,8 +13,6 @@ import com.zegoggles.smssync.CursorToMessage.DataType;
 
 import java.util.HashSet;
 import java.util.Set;
-import java.util.List;
-import java.util.ArrayList;
 import java.io.File;
 import java.io.IOException;
 import java.io.FilenameFilter;
@@ -23,6 +20,9 @@ import static com.zegoggles.smssync.ServiceBase.SmsSyncState.*;
 import static com.zegoggles.smssync.App.*;
 
 public class SmsRestoreService extends ServiceBase {
+    /** Number of messages fetched from the server with one FETCH command */
+    private static final int RESTORE_PAGE_SIZE = 200;
+
     private static int sCurrentRestoredItems;
     private static int sItemsToRestoreCount;
 
@@ -48,13 +48,19 @@ public class SmsRestoreService extends ServiceBase {
     }
 
     class RestoreTask extends AsyncTask<Integer, SmsSyncState, Integer> {
-        private Set<String> smsIds     = new HashSet<String>();
-        private Set<String> callLogIds = new HashSet<String>();
         private Set<String> uids       = new HashSet<String>();
+        private int smsCount, callLogCount;
+        private long pendingMaxSmsDate = -1;
+        private final RestoreBatch smsBatch = new RestoreBatch(getContentResolver(), SMS_PROVIDER);
+        private final RestoreBatch callLogBatch = new RestoreBatch(getContentResolver(), CALLLOG_PROVIDER);
+        private DuplicateIndex smsIndex, callLogIndex;
         private BackupImapStore.BackupFolder smsFolder, callFolder;
         private final Context context = SmsRestoreService.this;
         private CursorToMessage converter = new CursorToMessage(context, PrefStore.getUserEmail(context));
         private int max;
+        private long lastPublished;
+        /** lowest UID of the folder being restored which couldn't be fetched or imported, or -1 */
+        private long lowestFailedUid;
 
         protected java.lang.Integer doInBackground(Integer... params) {
             this.max = params.length > 0 ? params[0] : -1;
@@ -74,45 +80,48 @@ public class SmsRestoreService extends ServiceBase {
 
                 publishProgress(CALC);
 
-                final List<Message> msgs = new ArrayList<Message>();
-
-                if (restoreSms) msgs.addAll(smsFolder.getMessages(max, starredOnly, null));
-                if (restoreCallLog) msgs.addAll(callFolder.getMessages(max, starredOnly, null));
+                // a complete restore only needs to search for messages added since the last one,
+                // a restore of the most recent messages has to look at all of them. So do starred
+                // only restores, old messages might have been starred since.
+                final boolean incremental = max <= 0 && !starredOnly;
+                final long smsAfterUid = restoreSms && incremental ? smsFolder.getRestoredUid() : -1;
+                final long callLogAfterUid = restoreCallLog && incremental ? callFolder.getRestoredUid() : -1;
 
-                sItemsToRestoreCount = max <= 0 ? msgs.size() : Math.min(msgs.size(), max);
+                final long[] smsUids = restoreSms ?
+                        smsFolder.getMessageUids(max, starredOnly, null, smsAfterUid) : new long[0];
+                final long[] callLogUids = restoreCallLog ?
+                        callFolder.getMessageUids(max, starredOnly, null, callLogAfterUid) : new long[0];
 
-                long lastPublished = System.currentTimeMillis();
-                for (int i = 0; i < sItemsToRestoreCount && !sCanceled; i++) {
+                // just assume equality on date+address+type
+                if (restoreSms) smsIndex = DuplicateIndex.load(getContentResolver(), SMS_PROVIDER,
+                        SmsConsts.DATE, SmsConsts.ADDRESS, SmsConsts.TYPE);
+                if (restoreCallLog) callLogIndex = DuplicateIndex.load(getContentResolver(), CALLLOG_PROVIDER,
+                        CallLog.Calls.DATE, CallLog.Calls.NUMBER, CallLog.Calls.DURATION, CallLog.Calls.TYPE);
 
-                    importMessage(msgs.get(i));
-                    sCurrentRestoredItems = i;
+                final int total = smsUids.length + callLogUids.length;
+                sItemsToRestoreCount = max <= 0 ? total : Math.min(total, max);
 
-                    msgs.set(i, null); // help gc
+                int restored = importMessages(smsFolder, smsUids, 0);
+                if (incremental && restoreSms) updateRestoredUid(smsFolder, smsUids);
 
-                    if (System.currentTimeMillis() - lastPublished > 1000) {
-                        // don't publish too often or we get ANRs
-                        publishProgress(RESTORE);
-                        lastPublished = System.currentTimeMillis();
-                    }
+                importMessages(callFolder, callLogUids, restored);
+                if (incremental && restoreCallLog) updateRestoredUid(callFolder, callLogUids);
 
-                    if (i % 50 == 0) {
-                      //clear cache periodically otherwise SD card fills up
-                      clearCache();
-                    }
-                }
                 publishProgress(UPDATING_THREADS);
                 updateAllThreads(false);
 
-                return smsIds.size() + callLogIds.size();
+                return smsCount + callLogCount;
             } catch (ConnectivityErrorException e) {
                 lastError = translateException(e);
                 publishProgress(CONNECTIVITY_ERROR);
                 return null;
             } catch (AuthenticationFailedException e) {
+                BackupImapStore.invalidate();
                 publishProgress(AUTH_FAILED);
                 return null;
             } catch (MessagingException e) {
                 Log.e(TAG, "error", e);
+                BackupImapStore.invalidate();
                 lastError = translateException(e);
                 publishProgress(GENERAL_ERROR);
                 return null;
@@ -123,6 +132,11 @@ public class SmsRestoreService extends ServiceBase {
                 return null;
             } finally {
                 releaseLocks();
+                // return the connections to the pool of the shared store
+                if (smsFolder != null) smsFolder.close();
+                if (callFolder != null) callFolder.close();
+                BackupImapStore.release();
+                ContactCache.saveInstance();
            }
         }
 
@@ -166,16 +180,94 @@ public class SmsRestoreService extends ServiceBase {
             } catch (InterruptedException ignored) { }
         }
 
-        private void importMessage(Message message) {
-            uids.add(message.getUid());
+        /**
+         * Remembers the highest UID up to which the folder has been restored, so the next restore
+         * only needs to search for messages added after it. Messages which failed to restore are
+         * searched for again.
+         */
+        private void updateRestoredUid(BackupImapStore.BackupFolder folder, long[] messageUids) {
+            if (sCanceled) return;
+
+            long uid;
+            if (lowestFailedUid != -1) {
+                uid = lowestFailedUid - 1;
+            } else {
+                uid = folder.getUidNext() - 1;
+                for (long messageUid : messageUids) {
+                    uid = Math.max(uid, messageUid);
+                }
+            }
+            if (uid > 0) {
+                if (LOCAL_LOGV) Log.v(TAG, "restored " + folder.getName() + " up to UID " + uid);
+                folder.setRestoredUid(uid);
+            }
+        }
+
+        private void importFailed(long uid) {
+            if (lowestFailedUid == -1 || uid < lowestFailedUid) lowestFailedUid = uid;
+        }
 
-            FetchProfile fp = new FetchProfile();
-            fp.add(FetchProfile.Item.BODY);
+        /**
+         * Fetches and imports messages in pages of {@link #RESTORE_PAGE_SIZE}.
+         *
+         * @param count the number of items processed so far
+         * @return the number of items processed
+         */
+        private int importMessages(BackupImapStore.BackupFolder folder, long[] messageUids, int count)
+                throws MessagingException {
+            lowestFailedUid = -1;
+            for (int offset = 0;
+                 offset < messageUids.length && count < sItemsToRestoreCount && !sCanceled;
+                 offset += RESTORE_PAGE_SIZE) {
+
+                final int pageSize = Math.min(Math.min(RESTORE_PAGE_SIZE, messageUids.length - offset),
+                                              sItemsToRestoreCount - count);
+                for (Message message : fetchPage(folder, messageUids, offset, pageSize)) {
+                    if (sCanceled) break;
+                    if (message != null) importMessage(message);
+                    sCurrentRestoredItems = count++;
+
+                    if (System.currentTimeMillis() - lastPublished > 1000) {
+                        // don't publish too often or we get ANRs
+                        publishProgress(RESTORE);
+                        lastPublished = System.currentTimeMillis();
+                    }
+                }
+                flushSms();
+                flushCallLog();
+
+                // bodies of the page are no longer needed, otherwise SD card fills up
+                clearCache();
+            }
+            return count;
+        }
 
+        private Message[] fetchPage(BackupImapStore.BackupFolder folder, long[] messageUids,
+                                    int offset, int pageSize) throws MessagingException {
             try {
-                if (LOCAL_LOGV) Log.v(TAG, "fetching message uid " + message.getUid());
+                return folder.fetchMessages(messageUids, offset, pageSize);
+            } catch (AuthenticationFailedException e) {
+                throw e;
+            } catch (MessagingException e) {
+                Log.w(TAG, "error fetching messages, retrying one by one", e);
+
+                final Message[] messages = new Message[pageSize];
+                for (int i = 0; i < pageSize && !sCanceled; i++) {
+                    try {
+                        messages[i] = folder.fetchMessages(messageUids, offset + i, 1)[0];
+                    } catch (MessagingException e2) {
+                        Log.e(TAG, "error", e2);
+                        importFailed(messageUids[offset + i]);
+                    }
+                }
+                return messages;
+            }
+        }
 
-                message.getFolder().fetch(new Message[] { message }, fp, null);
+        private void importMessage(Message message) {
+            uids.add(message.getUid());
+
+            try {
                 final DataType dataType = converter.getDataType(message);
                 //only restore sms+call log for now
                 switch (dataType) {
@@ -185,11 +277,22 @@ public class SmsRestoreService extends ServiceBase {
                 }
             } catch (MessagingException e) {
                 Log.e(TAG, "error", e);
+                importFailed(message);
             } catch (IllegalArgumentException e) {
                 // http://code.google.com/p/android/issues/detail?id=2916
                 Log.e(TAG, "error", e);
+                importFailed(message);
             } catch (java.io.IOException e) {
                 Log.e(TAG, "error", e);
+                importFailed(message);
+            }
+        }
+
+        private void importFailed(Message message) {
+            try {
+                importFailed(Long.parseLong(message.getUid()));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "invalid UID: " + message.getUid());
             }
         }
 
@@ -201,29 +304,38 @@ public class SmsRestoreService extends ServiceBase {
             // only restore inbox messages and sent messages - otherwise sms might get sent on restore
             if (type != null && (type == SmsConsts.MESSAGE_TYPE_INBOX ||
                                  type == SmsConsts.MESSAGE_TYPE_SENT) &&
-                                 !smsExists(values)) {
-                final Uri uri = getContentResolver().insert(SMS_PROVIDER, values);
-                if (uri != null) {
-                  smsIds.add(uri.getLastPathSegment());
-                  Long timestamp = values.getAsLong(SmsConsts.DATE);
-
-                  if (timestamp != null &&
-                      PrefStore.getMaxSyncedDateSms(context) < timestamp) {
-                      updateMaxSyncedDateSms(timestamp);
-                  }
-                  if (LOCAL_LOGV) Log.v(TAG, "inserted " + uri);
+                                 !smsIndex.contains(values)) {
+                final Long timestamp = values.getAsLong(SmsConsts.DATE);
+                if (timestamp != null && timestamp > pendingMaxSmsDate) {
+                    pendingMaxSmsDate = timestamp;
                 }
+                smsIndex.add(values);
+                if (smsBatch.add(values)) flushSms();
             } else {
                 if (LOCAL_LOGV) Log.d(TAG, "ignoring sms");
             }
         }
 
+        private void flushSms() {
+            final int inserted = smsBatch.flush();
+            smsCount += inserted;
+
+            if (inserted > 0 && PrefStore.getMaxSyncedDateSms(context) < pendingMaxSmsDate) {
+                updateMaxSyncedDateSms(pendingMaxSmsDate);
+            }
+            pendingMaxSmsDate = -1;
+        }
+
+        private void flushCallLog() {
+            callLogCount += callLogBatch.flush();
+        }
+
         private void importCallLog(final Message message) throws MessagingException, IOException {
             if (LOCAL_LOGV) Log.v(TAG, "importCallLog("+message+")");
             final ContentValues values = converter.messageToContentValues(message);
-            if (!callLogExists(values)) {
-              final Uri uri = getContentResolver().insert(CALLLOG_PROVIDER, values);
-              if (uri != null) callLogIds.add(uri.getLastPathSegment());
+            if (!callLogIndex.contains(values)) {
+              callLogIndex.add(values);
+              if (callLogBatch.add(values)) flushCallLog();
             } else {
               if (LOCAL_LOGV) Log.d(TAG, "ignoring call log");
             }
@@ -263,40 +375,4 @@ public class SmsRestoreService extends ServiceBase {
           if (!f.delete()) Log.w(TAG, "error deleting " + f);
         }
     }
-
-    private boolean callLogExists(ContentValues values) {
-        Cursor c = getContentResolver().query(CALLLOG_PROVIDER,
-                new String[] { "_id" },
-                "number = ? AND duration = ? AND type = ?",
-                new String[] { values.getAsString(CallLog.Calls.NUMBER),
-                               values.getAsString(CallLog.Calls.DURATION),
-                               values.getAsString(CallLog.Calls.TYPE) },
-                               null
-        );
-        boolean exists = false;
-        if (c != null) {
-          exists = c.getCount() > 0;
-          c.close();
-        }
-        return exists;
-    }
-
-    private boolean smsExists(ContentValues values) {
-        // just assume equality on date+address+type
-        Cursor c = getContentResolver().query(SMS_PROVIDER,
-                new String[] { "_id" },
-                "date = ? AND address = ? AND type = ?",
-                new String[] { values.getAsString(SmsConsts.DATE),
-                               values.getAsString(SmsConsts.ADDRESS),
-                               values.getAsString(SmsConsts.TYPE)},
-                               null
-        );
-
-        boolean exists = false;
-        if (c != null) {
-          exists = c.getCount() > 0;
-          c.close();
-        }
-        return exists;
-    }
 }
@@ -0,0 +1,178 @@
+package com.zegoggles.smssync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.*;
+
+/**
+ * Keeps the state of backups (max synced dates etc.) in a small SQLite table instead of
+ * the default shared preferences. Updating a value only touches a single row, whereas
+ * preferences get rewritten wholesale (and trigger a backup agent run) on every change.
+ * <p/>
+ * All values are cached in memory, reads never hit the disk.
+ */
+public class SyncStateStore extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "sync_state.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "sync_state";
+    private static final String KEY = "key";
+    private static final String VALUE = "value";
+
+    /** preference keys which get moved over from the default shared preferences */
+    private static final String[] MIGRATED_KEYS = {
+        PrefStore.PREF_MAX_SYNCED_DATE_SMS,
+        PrefStore.PREF_MAX_SYNCED_DATE_MMS,
+        PrefStore.PREF_MAX_SYNCED_DATE_CALLLOG
+    };
+
+    private static SyncStateStore sInstance;
+
+    private final Context context;
+    private Map<String, Long> cache;
+    private boolean migrated;
+
+    public static synchronized SyncStateStore get(Context context) {
+        if (sInstance == null) {
+            sInstance = new SyncStateStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SyncStateStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " (" +
+                KEY + " TEXT PRIMARY KEY, " +
+                VALUE + " INTEGER NOT NULL)");
+
+        migratePreferences(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    public synchronized boolean contains(String key) {
+        return getCache().containsKey(key);
+    }
+
+    public synchronized long getLong(String key, long defValue) {
+        final Long value = getCache().get(key);
+        return value == null ? defValue : value;
+    }
+
+    public synchronized void putLong(String key, long value) {
+        final Map<String, Long> values = new HashMap<String, Long>(1);
+        values.put(key, value);
+        putLongs(values);
+    }
+
+    /**
+     * Stores several values in one transaction.
+     */
+    public synchronized void putLongs(Map<String, Long> values) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, Long> e : values.entrySet()) {
+                insertOrReplace(db, e.getKey(), e.getValue());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        getCache().putAll(values);
+    }
+
+    public synchronized void remove(String... keys) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String key : keys) {
+                db.delete(TABLE, KEY + " = ?", new String[] { key });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        for (String key : keys) {
+            getCache().remove(key);
+        }
+    }
+
+    /**
+     * Removes all values with keys starting with the prefix.
+     */
+    public synchronized void removePrefix(String prefix) {
+        final List<String> keys = new ArrayList<String>();
+        for (String key : getCache().keySet()) {
+            if (key.startsWith(prefix)) keys.add(key);
+        }
+        if (!keys.isEmpty()) remove(keys.toArray(new String[keys.size()]));
+    }
+
+    private Map<String, Long> getCache() {
+        if (cache == null) {
+            final Map<String, Long> values = new HashMap<String, Long>();
+            final Cursor c = getReadableDatabase().query(TABLE, new String[] { KEY, VALUE },
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    values.put(c.getString(0), c.getLong(1));
+                }
+            } finally {
+                c.close();
+            }
+            cache = values;
+
+            if (migrated) {
+                // database has been committed, now safe to drop the old values
+                removeMigratedPreferences();
+                migrated = false;
+            }
+        }
+        return cache;
+    }
+
+    private void migratePreferences(SQLiteDatabase db) {
+        final SharedPreferences prefs = PrefStore.getPrefs(context);
+        for (String key : MIGRATED_KEYS) {
+            if (prefs.contains(key)) {
+                if (LOCAL_LOGV) Log.v(TAG, "migrating " + key + " to sync state store");
+                insertOrReplace(db, key, prefs.getLong(key, PrefStore.DEFAULT_MAX_SYNCED_DATE));
+            }
+        }
+        migrated = true;
+    }
+
+    private void removeMigratedPreferences() {
+        final SharedPreferences.Editor editor = PrefStore.getPrefs(context).edit();
+        for (String key : MIGRATED_KEYS) {
+            editor.remove(key);
+        }
+        editor.commit();
+    }
+
+    private static void insertOrReplace(SQLiteDatabase db, String key, long value) {
+        final ContentValues values = new ContentValues(2);
+        values.put(KEY, key);
+        values.put(VALUE, value);
+        db.replace(TABLE, null, values);
+    }
+}
@@ -7,8 +7,6 @@ import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.NoSuchMethodException;
 import java.lang.ClassNotFoundException;
-import java.util.Map;
-import java.util.LinkedHashMap;
 
 import static com.zegoggles.smssync.App.*;
 
@@ -20,13 +18,7 @@ public class ThreadHelper {
 
     private static final int MAX_THREAD_CACHE_SIZE = 500;
 
-    @SuppressWarnings("serial")
-    private Map<String, Long> mThreadIdCache =
-          new LinkedHashMap<String, Long>(MAX_THREAD_CACHE_SIZE+1, .75F, true) {
-          @Override public boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
-            return size() > MAX_THREAD_CACHE_SIZE;
-          }
-      };
+    private final PhoneNumberIndex<Long> mThreadIdCache = new PhoneNumberIndex<Long>(MAX_THREAD_CACHE_SIZE);
 
     public Long getThreadId(final Context context, final String recipient) {
       if (recipient == null || !threadsAvailable) return null;